@@ -21,7 +21,8 @@ public class Agent implements Runnable {
         JNIHelper.loadAndAttachIfNeeded();
     }
 
-    @Option(names = "--gst", description = "compare with GetStackTrace, triggers safe-points")
+    @Option(names = "--gst", description = "compare with GetStackTrace, not supported: GetStackTrace can only " +
+            "walk other threads at a later point of their execution than the other APIs")
     private boolean compareWithGST = false;
 
     /**
@@ -39,6 +40,30 @@ public class Agent implements Runnable {
     @Option(names = {"--depth", "-d"}, description = "maximum depth of the stack trace")
     private int depth = 1024;
 
+    @Option(names = "--cpu-timer", description = "sample all threads continuously using timers on their CPU " +
+            "clocks, only uses the signal handler configurations")
+    private boolean cpuTimer = false;
+
+    @Option(names = "--perf-events", description = "sample all threads continuously using perf_event_open CPU " +
+            "clock events, only uses the signal handler configurations")
+    private boolean perfEvents = false;
+
+    @Option(names = "--native-compare", description = "compare the traces in native code, only unequal traces are " +
+            "materialized")
+    private boolean nativeComparison = false;
+
+    @Option(names = "--overhead-budget", description = "maximum CPU overhead of the sampling in percent of the " +
+            "process CPU time, adjusts the sample interval and the threads per iteration, 0 to disable")
+    private float overheadBudget = 0;
+
+    @Option(names = "--on-cpu", description = "only walk threads that consumed CPU time since the previous " +
+            "iteration, weighted by the consumed CPU time")
+    private boolean onCpu = false;
+
+    @Option(names = "--virtual-threads", description = "also walk the mounted virtual threads and attribute the " +
+            "samples of carrier threads to their mounted virtual thread, requires JDK 21 or newer")
+    private boolean virtualThreads = false;
+
 
     private List<Thread> selectThreads() {
         Thread[] threads = Tracer.getThreads();
@@ -52,15 +77,35 @@ public class Agent implements Runnable {
         // separate thread is not supported for basic
         List<Configuration> configurations = new ArrayList<>(basic ? Tracer.basicSeparateThreadConfigs :
                 Tracer.extensiveSpecificThreadConfigs);
-        if (!compareWithGST) {
-            configurations.removeIf(c -> c.mode() == Tracer.Mode.GST);
+        // GST can't walk the threads at the same point of their execution as the other APIs
+        configurations.removeIf(c -> c.mode() == Tracer.Mode.GST);
+        if (cpuTimer || perfEvents) {
+            configurations.removeIf(c -> c.mode() != Tracer.Mode.ASGCT_SIGNAL_HANDLER &&
+                    c.mode() != Tracer.Mode.ASGST_SIGNAL_HANDLER);
         }
         return new Tracer(configurations).setDepth(depth);
     }
 
+    private Tracer.SamplingTrigger continuousTrigger() {
+        if (perfEvents) {
+            return Tracer.SamplingTrigger.PERF_CPU_CLOCK;
+        }
+        return cpuTimer ? Tracer.SamplingTrigger.CPU_TIMER : null;
+    }
+
     @Override
     public void run() {
-        AgentBase agentBase = new AgentBase(createTracer(), sampleInterval, false, t -> true);
+        if (compareWithGST) {
+            throw new IllegalArgumentException("--gst is not supported, GetStackTrace can't be compared with the " +
+                    "other APIs for other threads");
+        }
+        AgentBase agentBase = new AgentBase(createTracer(), sampleInterval, false, t -> true,
+                continuousTrigger()).setNativeComparison(nativeComparison)
+                .setOnCpuSelection(onCpu).setVirtualThreads(virtualThreads)
+                .setMaxThreadsPerIteration(maxThreadsPerIteration);
+        if (overheadBudget > 0) {
+            agentBase.setOverheadBudget(overheadBudget / 100);
+        }
         Thread t = new Thread(agentBase);
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.printf("[Agent] Success: %d, Fail: %d%n", agentBase.getSuccess(), agentBase.getFail());
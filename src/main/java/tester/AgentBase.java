@@ -7,6 +7,7 @@ import tester.Frame.MethodNameAndClass;
 import tester.Tracer.Configuration;
 import tester.Tracer.ConfiguredTrace;
 import tester.Tracer.Mode;
+import tester.Tracer.SamplingTrigger;
 import tester.util.Pair;
 import tester.util.WhiteBoxUtil;
 import tester.util.WhiteBoxUtil.CompilationLevelAndInlining;
@@ -22,7 +23,32 @@ public class AgentBase implements Runnable {
 
     private final float sampleInterval;
 
-    private final int maxThreadsPerIteration = 10;
+    /**
+     * trigger for the continuous sampling of all threads, null to walk selected threads in every iteration
+     */
+    private final SamplingTrigger continuousTrigger;
+
+    /**
+     * compare the traces in native code and only check unequal traces in Java
+     */
+    private boolean nativeComparison = false;
+
+    /**
+     * only select threads that consumed CPU time since the previous iteration
+     */
+    private boolean onCpuSelection = false;
+
+    /**
+     * also walk the mounted virtual threads, see {@link Tracer#setVirtualThreadSupport(boolean)}
+     */
+    private boolean virtualThreads = false;
+
+    private int maxThreadsPerIteration = 10;
+
+    /**
+     * adjusts the sample interval and threads per iteration to the CPU budget, null to use them as they are
+     */
+    private OverheadController overheadController = null;
 
     private long success = 0;
     private long fail = 0;
@@ -44,18 +70,72 @@ public class AgentBase implements Runnable {
 
     public AgentBase(Tracer tracer, float sampleInterval, boolean shouldCollectMethods,
                      Predicate<Trace> tracePredicate) {
+        this(tracer, sampleInterval, shouldCollectMethods, tracePredicate, null);
+    }
+
+    /**
+     * @param continuousTrigger trigger for the continuous sampling, null for the iteration based sampling,
+     *                          the continuous sampling only supports signal handler configurations
+     */
+    public AgentBase(Tracer tracer, float sampleInterval, boolean shouldCollectMethods,
+                     Predicate<Trace> tracePredicate, SamplingTrigger continuousTrigger) {
         this.tracer = tracer;
         this.sampleInterval = sampleInterval;
+        this.continuousTrigger = continuousTrigger;
         this.shouldCollectMethodNames = shouldCollectMethods;
         this.tracePredicate = tracePredicate;
     }
 
+    /**
+     * compare the traces in native code, only unequal traces are materialized and checked in Java,
+     * equal traces are counted as successes without checking the bottom methods or the trace predicate
+     */
+    public AgentBase setNativeComparison(boolean nativeComparison) {
+        this.nativeComparison = nativeComparison;
+        return this;
+    }
+
+    /**
+     * only walk threads that consumed CPU time since the previous iteration, weighted by the consumed CPU time
+     */
+    public AgentBase setOnCpuSelection(boolean onCpuSelection) {
+        this.onCpuSelection = onCpuSelection;
+        return this;
+    }
+
+    /**
+     * also walk up to max threads per iteration of the mounted virtual threads, and check the continuous samples
+     * of carriers that ran virtual threads, ignored if the JVM does not support virtual threads
+     */
+    public AgentBase setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    public AgentBase setMaxThreadsPerIteration(int maxThreadsPerIteration) {
+        this.maxThreadsPerIteration = maxThreadsPerIteration;
+        return this;
+    }
+
+    /**
+     * keep the CPU time of the sampling below the passed share of the process CPU time (e.g. 0.02 for 2%),
+     * by increasing the sample interval and decreasing the threads per iteration,
+     * only for the iteration based sampling, see {@link OverheadController}
+     */
+    public AgentBase setOverheadBudget(double budget) {
+        this.overheadController = new OverheadController(budget, sampleInterval, maxThreadsPerIteration);
+        return this;
+    }
+
     public void addAllowedBottomMethod(MethodNameAndClass method) {
         allowedBottomMethods.add(method);
     }
 
     public void printResult() {
         System.out.printf("[Agent] Success: %d, Fail: %d, Discarded: %d%n", success, fail, discarded);
+        if (overheadController != null) {
+            System.out.println("[Agent] " + overheadController);
+        }
     }
 
     protected void addMethod(MethodId methodId, Executable executable) {
@@ -103,48 +183,124 @@ public class AgentBase implements Runnable {
     }
 
     public List<Thread> selectThreads() {
-        Thread[] threads = Tracer.getThreads();
-        List<Thread> threadList = new ArrayList<>(List.of(threads));
-        threadList.remove(Thread.currentThread());
-        Collections.shuffle(threadList);
-        return threadList.subList(0, Math.min(maxThreadsPerIteration, threadList.size()));
+        long currentThreadId = Thread.currentThread().getId();
+        int maxThreads = overheadController == null ? maxThreadsPerIteration :
+                overheadController.getThreadsPerIteration();
+        List<Thread> threads = new ArrayList<>(List.of(onCpuSelection ?
+                Tracer.selectOnCpuThreads(maxThreads, currentThreadId) :
+                Tracer.selectThreads(maxThreads, currentThreadId)));
+        if (virtualThreads) {
+            List<Thread> mounted = new ArrayList<>(List.of(Tracer.getMountedVirtualThreads()));
+            Collections.shuffle(mounted, random);
+            threads.addAll(mounted.subList(0, Math.min(maxThreads, mounted.size())));
+        }
+        return threads;
     }
 
     private void iteration(Tracer tracer) {
         List<Thread> threads = selectThreads();
-        if (selectThreads().isEmpty()) {
+        if (threads.isEmpty()) {
             System.err.println("[Agent] No threads to walk");
             return;
         }
-        for (Thread t : threads) {
-            try {
-                if (!t.isAlive() || t.isDaemon()) {
-                    continue;
-                }
-                List<ConfiguredTrace> traces = tracer.runMultiple(t);
-                if (tracer.hasASGCTSignalConfiguration()) {
-                    var trace = traces.stream().filter(c -> c.config().mode() == Mode.ASGCT_SIGNAL_HANDLER).findFirst().get();
-                    if (!trace.mightBeCutOff() && !trace.trace().isEmpty() && allowedBottomMethods.stream().noneMatch(m -> m.isSame(((JavaFrame)trace.trace().get(-1)).methodId))) {
-                        System.err.println("[Agent] Discarding trace because of bottom frame " + trace.trace().get(-1));
-                        discarded++;
-                        printResult();
-                        continue;
-                    }
-                }
-                Trace trace = tracer.compare(traces, true);
-                if (!tracePredicate.test(trace)) {
-                    System.err.println("[Agent] Trace predicate failed");
+        // virtual threads are always daemons
+        Thread[] walkableThreads = threads.stream().filter(t -> t.isAlive() && (!t.isDaemon() || Tracer.isVirtual(t)))
+                .toArray(Thread[]::new);
+        if (nativeComparison) {
+            iterationWithNativeComparison(walkableThreads);
+            return;
+        }
+        for (ConfiguredTrace[] threadTraces : walk(walkableThreads)) {
+            if (threadTraces != null) {
+                checkTraces(List.of(threadTraces));
+            }
+        }
+    }
+
+    /**
+     * walk all threads in a single batch, or one by one if the batch fails,
+     * so that a failing thread only loses its own traces
+     */
+    private ConfiguredTrace[][] walk(Thread[] threads) {
+        try {
+            return tracer.runMultiple(threads);
+        } catch (AssertionError | RuntimeException e) {
+            ConfiguredTrace[][] traces = new ConfiguredTrace[threads.length][];
+            for (int i = 0; i < threads.length; i++) {
+                try {
+                    traces[i] = tracer.runMultiple(new Thread[]{threads[i]})[0];
+                } catch (AssertionError | RuntimeException threadError) {
+                    threadError.printStackTrace();
                     fail++;
-                    continue;
                 }
-                if (shouldCollectMethodNames) {
-                    collectMethodNames(trace);
+            }
+            return traces;
+        }
+    }
+
+    private int[] nativeComparisonStatuses = new int[0];
+
+    private void iterationWithNativeComparison(Thread[] threads) {
+        if (nativeComparisonStatuses.length < threads.length) {
+            nativeComparisonStatuses = new int[threads.length];
+        }
+        var unequalTraces = tracer.runMultipleAndCompareNatively(threads, true, nativeComparisonStatuses);
+        for (int i = 0; i < threads.length; i++) {
+            switch (nativeComparisonStatuses[i]) {
+                case Tracer.NATIVE_COMPARISON_EQUAL -> success++;
+                case Tracer.NATIVE_COMPARISON_UNEQUAL -> checkTraces(List.of(unequalTraces[i]));
+                default -> {
                 }
-                success++;
-            } catch (AssertionError e) {
-                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * check the traces of a single thread and count the result
+     */
+    private void checkTraces(List<ConfiguredTrace> traces) {
+        try {
+            traces = traces.stream().map(ConfiguredTrace::resolve).toList();
+            if (tracer.hasASGCTSignalConfiguration()) {
+                var trace = traces.stream().filter(c -> c.config().mode() == Mode.ASGCT_SIGNAL_HANDLER).findFirst().get();
+                if (!trace.mightBeCutOff() && !trace.trace().isEmpty() && allowedBottomMethods.stream().noneMatch(m -> m.isSame(((JavaFrame)trace.trace().get(-1)).methodId))) {
+                    System.err.println("[Agent] Discarding trace because of bottom frame " + trace.trace().get(-1));
+                    discarded++;
+                    printResult();
+                    return;
+                }
+            }
+            Trace trace = tracer.compare(traces, true);
+            if (!tracePredicate.test(trace)) {
+                System.err.println("[Agent] Trace predicate failed");
                 fail++;
-                printResult();
+                return;
+            }
+            if (shouldCollectMethodNames) {
+                collectMethodNames(trace);
+            }
+            success++;
+        } catch (AssertionError | RuntimeException e) {
+            // only loses the traces of this thread
+            e.printStackTrace();
+            fail++;
+            printResult();
+        }
+    }
+
+    /**
+     * check all recorded samples of the threads that would be selected for walking
+     */
+    private void drainContinuousSamples() {
+        Set<Long> threadIds = Arrays.stream(Tracer.getThreads())
+                .filter(t -> t != Thread.currentThread() && t.isAlive() && !t.isDaemon())
+                .map(Thread::getId).collect(Collectors.toSet());
+        List<Tracer.ContinuousSample> samples;
+        while (!stop && !(samples = Tracer.drainContinuousSamples(1000)).isEmpty()) {
+            for (var sample : samples) {
+                if (threadIds.contains(sample.threadId()) || (virtualThreads && sample.isOfVirtualThread())) {
+                    checkTraces(sample.traces());
+                }
             }
         }
     }
@@ -163,15 +319,59 @@ public class AgentBase implements Runnable {
         return System.nanoTime() / 1_000_000_000f;
     }
 
+    /**
+     * sample continuously, the interval is only used for the sampling and not for the draining
+     */
+    private void continuousLoop() {
+        tracer.startContinuousSampling((long) (sampleInterval * 1_000_000_000L), 1000, continuousTrigger);
+        try {
+            while (!stop) {
+                drainContinuousSamples();
+                sleep(0.01f);
+            }
+        } finally {
+            Tracer.stopContinuousSampling();
+        }
+    }
+
     private void loop() {
-        while (!stop) {
-            var start = time();
-            iteration(tracer);
-            var elapsed = time() - start;
-            var sleep = Math.max(0, sampleInterval - elapsed);
-            if (sleep > 0) {
-                sleep(sleep);
+        // most samples repeat the same stacks, so only materialize them once (only for the agent thread)
+        Tracer.setKnownTraceHandles(true);
+        if (virtualThreads && !Tracer.setVirtualThreadSupport(true)) {
+            System.err.println("[Agent] Virtual threads are not supported by this JVM");
+            virtualThreads = false;
+        }
+        try {
+            if (continuousTrigger != null) {
+                continuousLoop();
+                return;
+            }
+            if (overheadController != null) {
+                overheadController.start();
             }
+            while (!stop) {
+                var start = time();
+                iteration(tracer);
+                float interval = sampleInterval;
+                if (overheadController != null) {
+                    overheadController.update();
+                    interval = overheadController.getSampleInterval();
+                }
+                var elapsed = time() - start;
+                var sleep = Math.max(0, interval - elapsed);
+                if (sleep > 0) {
+                    sleep(sleep);
+                }
+            }
+        } finally {
+            if (overheadController != null) {
+                overheadController.stop();
+            }
+            if (virtualThreads) {
+                Tracer.setVirtualThreadSupport(false);
+            }
+            Tracer.setKnownTraceHandles(false);
+            Tracer.clearKnownTraces();
         }
     }
 
@@ -213,7 +413,18 @@ public class AgentBase implements Runnable {
      */
     public static Result run(List<Configuration> configuration, float sampleInterval, int depth, Runnable runnable,
                              Predicate<Trace> predicate, Map<MethodId, Executable> collectedMethods, List<MethodNameAndClass> allowedBottomMethods) {
-        AgentBase agent = new AgentBase(new Tracer(configuration).setDepth(depth), sampleInterval, collectedMethods != null, predicate) {
+        return run(configuration, sampleInterval, depth, runnable, predicate, collectedMethods, allowedBottomMethods, null);
+    }
+
+    /**
+     * Run the agent with the given tracer configuration on the given runnable, excluding the sampling thread
+     *
+     * @param continuousTrigger trigger for the continuous sampling, null for the iteration based sampling
+     */
+    public static Result run(List<Configuration> configuration, float sampleInterval, int depth, Runnable runnable,
+                             Predicate<Trace> predicate, Map<MethodId, Executable> collectedMethods,
+                             List<MethodNameAndClass> allowedBottomMethods, SamplingTrigger continuousTrigger) {
+        AgentBase agent = new AgentBase(new Tracer(configuration).setDepth(depth), sampleInterval, collectedMethods != null, predicate, continuousTrigger) {
             @Override
             public List<Thread> selectThreads() {
                 return super.selectThreads().stream().filter(t -> !t.getName().equals("Tester Agent")).toList();
@@ -0,0 +1,121 @@
+package tester;
+
+import tester.Frame.JavaFrame;
+import tester.Frame.MethodId;
+import tester.Frame.NonJavaFrame;
+
+import java.util.AbstractList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Frames of a trace stored column-wise in primitive arrays, as transferred by the native code in bulk.
+ * The {@link Frame} objects are only created when they are accessed.
+ * The methods are either resolved by the native code when the trace is built, or all at once on the first access.
+ * Java frames whose method can't be resolved (e.g. ASGCT frames of not yet primed classes in samples) get a
+ * placeholder method, see {@link MethodId#unresolved(long)}.
+ */
+final class ColumnarFrames extends AbstractList<Frame> {
+
+    /** index of the method of every frame in {@link #methods}, -1 for non-Java frames */
+    private final int[] methodIndexes;
+    /** distinct method ids, only used to resolve the methods lazily */
+    private final long[] methodIds;
+    private final int[] bcis;
+    private final byte[] types;
+    private final byte[] compLevels;
+    /** only used for non-Java frames */
+    private final long[] pcs;
+    /** distinct methods of the frames, null till resolved */
+    private MethodId[] methods;
+
+    private final Frame[] frames;
+
+    /**
+     * frames whose methods are resolved on the first access
+     *
+     * @param methodIds method id of every frame (0 for non-Java frames)
+     */
+    ColumnarFrames(long[] methodIds, int[] bcis, byte[] types, byte[] compLevels, long[] pcs) {
+        Map<Long, Integer> indexById = new HashMap<>();
+        this.methodIndexes = new int[methodIds.length];
+        for (int i = 0; i < methodIds.length; i++) {
+            methodIndexes[i] = methodIds[i] == 0 ? -1 :
+                    indexById.computeIfAbsent(methodIds[i], id -> indexById.size());
+        }
+        this.methodIds = new long[indexById.size()];
+        indexById.forEach((id, index) -> this.methodIds[index] = id);
+        this.bcis = bcis;
+        this.types = types;
+        this.compLevels = compLevels;
+        this.pcs = pcs;
+        this.frames = new Frame[types.length];
+    }
+
+    /**
+     * frames with already resolved methods
+     *
+     * @param methodIndexes index of the method of every frame in methods, -1 for non-Java frames
+     * @param methods       distinct methods of the frames
+     */
+    ColumnarFrames(int[] methodIndexes, MethodId[] methods, int[] bcis, byte[] types, byte[] compLevels,
+                   long[] pcs) {
+        this.methodIndexes = methodIndexes;
+        this.methodIds = null;
+        this.methods = methods;
+        this.bcis = bcis;
+        this.types = types;
+        this.compLevels = compLevels;
+        this.pcs = pcs;
+        this.frames = new Frame[types.length];
+    }
+
+    @Override
+    public Frame get(int index) {
+        Frame frame = frames[index];
+        if (frame == null) {
+            frame = createFrame(index);
+            frames[index] = frame;
+        }
+        return frame;
+    }
+
+    private Frame createFrame(int index) {
+        if (types[index] == Frame.CPP) {
+            return new NonJavaFrame(pcs[index]);
+        }
+        if (methods == null) {
+            // resolve the distinct methods of all frames with a single native call
+            methods = Tracer.getMethodIds(methodIds);
+        }
+        return new JavaFrame(types[index], compLevels[index], bcis[index], method(methodIndexes[index]));
+    }
+
+    /** resolved method, or a placeholder for null method ids and methods that can't be resolved anymore */
+    private MethodId method(int methodIndex) {
+        if (methodIndex == -1) {
+            return MethodId.unresolved(0);
+        }
+        MethodId method = methods[methodIndex];
+        return method != null ? method : MethodId.unresolved(methodIds == null ? 0 : methodIds[methodIndex]);
+    }
+
+    @Override
+    public int size() {
+        return types.length;
+    }
+
+    /** type of the frame without creating it */
+    public int type(int index) {
+        return types[index];
+    }
+
+    public boolean containsType(int type) {
+        for (byte t : types) {
+            if (t == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
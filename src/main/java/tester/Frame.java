@@ -74,6 +74,13 @@ public abstract class Frame {
             this.signature = signature;
         }
 
+        /**
+         * placeholder for a method that can't be resolved, e.g. a null method id or a method of an unloaded class
+         */
+        static MethodId unresolved(long id) {
+            return new MethodId(id, "L<unresolved>;", "<unresolved>", "()V");
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof MethodId && ((MethodId) obj).id == id;
@@ -242,22 +249,74 @@ public abstract class Frame {
         }
     }
 
+    /**
+     * resolved program counter of a non-Java frame
+     *
+     * @param library path of the library that contains the pc
+     * @param name    demangled name of the function, null if unknown
+     * @param offset  offset of the pc in the function, or in the library if the function is unknown
+     */
+    public record NativeSymbol(String library, String name, long offset) {
+
+        public String libraryName() {
+            return library.substring(library.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public String toString() {
+            return "%s+0x%x (%s)".formatted(name == null ? "?" : name, offset, libraryName());
+        }
+    }
+
     public static class NonJavaFrame extends Frame {
         public final long pc;
 
+        private NativeSymbol symbol;
+        private boolean symbolized = false;
+
         public NonJavaFrame(long pc) {
             super(CPP);
             this.pc = pc;
         }
 
+        /**
+         * resolve the pc via the symbol tables of the loaded libraries,
+         * returns null if the pc isn't part of a library (e.g. generated code)
+         */
+        public NativeSymbol getSymbol() {
+            if (!symbolized) {
+                symbolize(List.of(this));
+            }
+            return symbol;
+        }
+
+        /**
+         * resolve the symbols of all passed frames with a single native call
+         */
+        public static void symbolize(List<NonJavaFrame> frames) {
+            List<NonJavaFrame> unresolved = frames.stream().filter(f -> !f.symbolized).toList();
+            if (unresolved.isEmpty()) {
+                return;
+            }
+            NativeSymbol[] symbols = Tracer.symbolize(unresolved.stream().mapToLong(f -> f.pc).toArray());
+            for (int i = 0; i < symbols.length; i++) {
+                unresolved.get(i).symbol = symbols[i];
+                unresolved.get(i).symbolized = true;
+            }
+        }
+
         @Override
         public boolean equals(Object obj) {
             return obj instanceof NonJavaFrame && ((NonJavaFrame) obj).pc == pc;
         }
 
+        /**
+         * contains the symbol only if the frame has already been symbolized, so that printing never calls
+         * into the native code
+         */
         @Override
         public String toString() {
-            return "Cpp[0x%08x]".formatted(pc);
+            return symbol == null ? "Cpp[0x%08x]".formatted(pc) : "Cpp[0x%08x %s]".formatted(pc, symbol);
         }
 
         @Override
@@ -0,0 +1,164 @@
+package tester;
+
+import tester.SamplerStats.Phase;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Feedback controller that keeps the CPU time of the sampling below a share of the CPU time of the process,
+ * by scaling the sample interval and the number of threads walked per iteration.
+ * <p>
+ * The sampling CPU time is the CPU time of the sampling thread plus the time spent walking in the signal handlers
+ * and walker threads (from the sampler stats, which are enabled between {@link #start()} and {@link #stop()}).
+ * If the overhead is above the budget, fewer threads are walked first and the interval is increased afterwards,
+ * if it is well below the budget, the interval is decreased first, down to the initial interval, and more threads
+ * are walked afterwards, up to the initial number.
+ */
+public class OverheadController {
+
+    /** minimum process CPU time between two adjustments, shorter periods are too noisy */
+    private static final long MIN_PERIOD_CPU_NANOS = 50_000_000;
+
+    /** adjust upwards only if the overhead is below this share of the budget */
+    private static final double LOW_WATERMARK = 0.5;
+
+    private static final float MAX_INTERVAL = 10f;
+
+    /** weight of the newest measurement in the smoothed overhead */
+    private static final double SMOOTHING = 0.5;
+
+    private final double budget;
+    private final float minInterval;
+    private final int maxThreads;
+
+    private float interval;
+    private int threads;
+    private double overhead = 0;
+
+    private boolean started = false;
+    private boolean statsWereEnabled = false;
+
+    private long lastSamplerCpuNanos = -1;
+    private long lastProcessCpuNanos = -1;
+
+    /**
+     * @param budget          maximum share of the process CPU time that the sampling may use, e.g. 0.02 for 2%
+     * @param initialInterval sample interval in seconds, never decreased below it
+     * @param maxThreads      number of threads per iteration, never increased above it
+     */
+    public OverheadController(double budget, float initialInterval, int maxThreads) {
+        if (budget <= 0 || budget >= 1) {
+            throw new IllegalArgumentException("Budget has to be in (0, 1)");
+        }
+        this.budget = budget;
+        this.minInterval = initialInterval;
+        this.maxThreads = Math.max(1, maxThreads);
+        this.interval = initialInterval;
+        this.threads = this.maxThreads;
+    }
+
+    public float getSampleInterval() {
+        return interval;
+    }
+
+    public int getThreadsPerIteration() {
+        return threads;
+    }
+
+    /** smoothed share of the process CPU time used by the sampling */
+    public double getOverhead() {
+        return overhead;
+    }
+
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * enable the sampler stats that are used to measure the time spent in the signal handlers and walkers
+     */
+    public void start() {
+        statsWereEnabled = Tracer.isSamplerStatsEnabled();
+        Tracer.setSamplerStatsEnabled(true);
+        started = true;
+    }
+
+    /**
+     * restore the state of the sampler stats before {@link #start()}, does nothing if not started
+     */
+    public void stop() {
+        if (started) {
+            Tracer.setSamplerStatsEnabled(statsWereEnabled);
+            started = false;
+        }
+    }
+
+    /**
+     * measure the overhead and adjust the interval and number of threads, has to be called by the sampling thread
+     */
+    public void update() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        var stats = Tracer.getSamplerStats();
+        long walkNanos = stats.get(Phase.SIGNAL_HANDLER_WALK).totalNanos() +
+                stats.get(Phase.WALKER_WALK).totalNanos() + stats.get(Phase.CONTINUOUS_RECORD).totalNanos();
+        update(threadBean.getCurrentThreadCpuTime() + walkNanos, processCpuTime());
+    }
+
+    private static long processCpuTime() {
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean bean) {
+            return bean.getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    /**
+     * @param samplerCpuNanos total CPU time used by the sampling
+     * @param processCpuNanos total CPU time of the process, -1 if unknown (nothing is adjusted then)
+     */
+    void update(long samplerCpuNanos, long processCpuNanos) {
+        if (processCpuNanos < 0) {
+            return;
+        }
+        if (lastProcessCpuNanos == -1) {
+            lastSamplerCpuNanos = samplerCpuNanos;
+            lastProcessCpuNanos = processCpuNanos;
+            return;
+        }
+        long processDelta = processCpuNanos - lastProcessCpuNanos;
+        if (processDelta < MIN_PERIOD_CPU_NANOS) {
+            return;
+        }
+        double measured = Math.min(1, Math.max(0, (samplerCpuNanos - lastSamplerCpuNanos) / (double) processDelta));
+        overhead = overhead == 0 ? measured : SMOOTHING * measured + (1 - SMOOTHING) * overhead;
+        lastSamplerCpuNanos = samplerCpuNanos;
+        lastProcessCpuNanos = processCpuNanos;
+        adjust(overhead / budget);
+    }
+
+    /**
+     * @param ratio overhead relative to the budget
+     */
+    private void adjust(double ratio) {
+        if (ratio > 1) {
+            // the cost is roughly proportional to threads / interval
+            if (threads > 1) {
+                threads = Math.max(1, (int) (threads / ratio));
+            } else {
+                interval = (float) Math.min(MAX_INTERVAL, interval * ratio);
+            }
+        } else if (ratio < LOW_WATERMARK) {
+            if (interval > minInterval) {
+                interval = Math.max(minInterval, interval / 1.25f);
+            } else if (threads < maxThreads) {
+                threads++;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "overhead=%.2f%% (budget %.2f%%), interval=%.4fs, threads=%d".formatted(overhead * 100, budget * 100,
+                interval, threads);
+    }
+}
@@ -0,0 +1,204 @@
+package tester;
+
+import tester.Tracer.Configuration;
+import tester.Tracer.ConfiguredTrace;
+import tester.Tracer.ContinuousSample;
+import tester.Tracer.SampleTime;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Samples written by the native code into the buffer attached via {@link Tracer#attachBuffer(ByteBuffer)},
+ * decoded lazily: only the accessed traces are materialized. The methods of a decoded trace are resolved in a
+ * single native call on the first access to one of its frames, so decode the traces before their classes might
+ * be unloaded.
+ * <p>
+ * Layout (native byte order, see sample_buffer.hpp):
+ * <ul>
+ *     <li>sample: int32 size in bytes, int32 trace count, int64 Java thread id, int64 carrier thread id,
+ *     int64 timestamp, int64 thread CPU time, int64 signal delay (see {@link SampleTime}), the traces</li>
+ *     <li>trace: int32 frame count (error code if negative), int8 kind, int8 state, int8 present, int8 unused,
+ *     int64 hash, the frames</li>
+ *     <li>frame: int64 method id (pc for non-Java frames), int32 bci, int8 type, int8 compilation level,
+ *     int16 unused</li>
+ * </ul>
+ * The traces have the same order as the traces of {@link Tracer#drainContinuousSamples(int)}.
+ */
+public final class SampleBuffer implements Iterable<SampleBuffer.Sample> {
+
+    static final int SAMPLE_HEADER_SIZE = 48;
+    static final int TRACE_HEADER_SIZE = 16;
+    static final int FRAME_SIZE = 16;
+
+    /**
+     * size in bytes of the largest sample with the passed number of traces (including the ASGCT trace) and
+     * maximum depth, an attached buffer has to be able to hold it
+     */
+    static long maxSampleSize(int traceCount, int depth) {
+        return SAMPLE_HEADER_SIZE + (long) traceCount * (TRACE_HEADER_SIZE + (long) depth * FRAME_SIZE);
+    }
+
+    private final ByteBuffer buffer;
+    private final List<Configuration> configs;
+    private final int depth;
+
+    SampleBuffer(ByteBuffer buffer, int size, List<Configuration> configs, int depth) {
+        this.buffer = buffer.slice(0, size).order(ByteOrder.nativeOrder());
+        this.configs = configs;
+        this.depth = depth;
+    }
+
+    public int sizeInBytes() {
+        return buffer.limit();
+    }
+
+    public boolean isEmpty() {
+        return buffer.limit() == 0;
+    }
+
+    @Override
+    public Iterator<Sample> iterator() {
+        return new Iterator<>() {
+            private int offset = 0;
+
+            @Override
+            public boolean hasNext() {
+                return offset < buffer.limit();
+            }
+
+            @Override
+            public Sample next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Sample sample = new Sample(offset);
+                offset += buffer.getInt(offset);
+                return sample;
+            }
+        };
+    }
+
+    public List<Sample> samples() {
+        List<Sample> samples = new ArrayList<>();
+        forEach(samples::add);
+        return samples;
+    }
+
+    /**
+     * view on a single sample, the traces are decoded on access
+     */
+    public final class Sample {
+
+        private final int offset;
+
+        private Sample(int offset) {
+            this.offset = offset;
+        }
+
+        public int traceCount() {
+            return buffer.getInt(offset + 4);
+        }
+
+        public long threadId() {
+            return buffer.getLong(offset + 8);
+        }
+
+        /**
+         * the platform thread that the sampled virtual thread was mounted on, -1 if no virtual thread was mounted
+         */
+        public long carrierThreadId() {
+            return buffer.getLong(offset + 16);
+        }
+
+        /**
+         * when the thread was sampled, without decoding the traces
+         */
+        public SampleTime time() {
+            return new SampleTime(buffer.getLong(offset + 24), buffer.getLong(offset + 32),
+                    buffer.getLong(offset + 40));
+        }
+
+        private int traceOffset(int index) {
+            if (index < 0 || index >= traceCount()) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            int traceOffset = offset + SAMPLE_HEADER_SIZE;
+            for (int i = 0; i < index; i++) {
+                traceOffset += TRACE_HEADER_SIZE + Math.max(buffer.getInt(traceOffset), 0) * FRAME_SIZE;
+            }
+            return traceOffset;
+        }
+
+        /**
+         * is the trace present, only the ASGCT trace (index 0) is absent if ASGCT is not sampled
+         */
+        public boolean isPresent(int index) {
+            return buffer.get(traceOffset(index) + 6) != 0;
+        }
+
+        /**
+         * number of frames or error code if negative, without decoding the trace
+         */
+        public int frameCount(int index) {
+            return buffer.getInt(traceOffset(index));
+        }
+
+        public long hash(int index) {
+            return buffer.getLong(traceOffset(index) + 8);
+        }
+
+        /**
+         * decodes the trace, returns null if it is not present
+         */
+        public Trace trace(int index) {
+            int traceOffset = traceOffset(index);
+            if (buffer.get(traceOffset + 6) == 0) {
+                return null;
+            }
+            int frameCount = buffer.getInt(traceOffset);
+            int kind = buffer.get(traceOffset + 4);
+            int state = buffer.get(traceOffset + 5);
+            long hash = buffer.getLong(traceOffset + 8);
+            if (frameCount < 0) {
+                return new Trace(kind, state, frameCount, hash);
+            }
+            long[] methodIds = new long[frameCount];
+            int[] bcis = new int[frameCount];
+            byte[] types = new byte[frameCount];
+            byte[] compLevels = new byte[frameCount];
+            long[] pcs = new long[frameCount];
+            int frameOffset = traceOffset + TRACE_HEADER_SIZE;
+            for (int i = 0; i < frameCount; i++, frameOffset += FRAME_SIZE) {
+                types[i] = buffer.get(frameOffset + 12);
+                if (types[i] == Frame.CPP) {
+                    pcs[i] = buffer.getLong(frameOffset);
+                } else {
+                    methodIds[i] = buffer.getLong(frameOffset);
+                }
+                bcis[i] = buffer.getInt(frameOffset + 8);
+                compLevels[i] = buffer.get(frameOffset + 13);
+            }
+            return new Trace(kind, state, hash, methodIds, bcis, types, compLevels, pcs);
+        }
+
+        /**
+         * decodes all traces and associates them with the configurations of the sampling
+         */
+        public List<ConfiguredTrace> traces() {
+            Trace[] traces = new Trace[traceCount()];
+            for (int i = 0; i < traces.length; i++) {
+                traces[i] = trace(i);
+            }
+            return Tracer.toConfiguredTraces(configs, depth, traces, time());
+        }
+
+        public ContinuousSample toContinuousSample() {
+            return new ContinuousSample(threadId(), carrierThreadId(), traces());
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package tester;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Latencies of the phases of the native sampler, see {@link Tracer#getSamplerStats()},
+ * the percentiles are upper bounds with about 6% precision
+ */
+public class SamplerStats {
+
+    /**
+     * has to match SamplerPhase in stats.hpp
+     */
+    public enum Phase {
+        /** from sending the signal till the signal handler starts */
+        SIGNAL_DELIVERY,
+        /** the stack walks in the signal handler */
+        SIGNAL_HANDLER_WALK,
+        /** from handing the request to the walker threads till a walker starts */
+        WALKER_HANDOFF,
+        /** the stack walks of the walker threads */
+        WALKER_WALK,
+        /** the requester waiting for a walk to finish, from sending the signal */
+        REQUESTER_WAIT,
+        /** creating the Java traces from the raw traces */
+        MATERIALIZATION,
+        /** recording a sample of the continuous sampling in the signal handler */
+        CONTINUOUS_RECORD
+    }
+
+    public record PhaseStats(long count, long totalNanos, long maxNanos, long p50Nanos, long p90Nanos,
+                             long p99Nanos, long p999Nanos) {
+
+        public double meanNanos() {
+            return count == 0 ? 0 : totalNanos / (double) count;
+        }
+
+        @Override
+        public String toString() {
+            return "count=%d, mean=%.0fns, p50=%dns, p90=%dns, p99=%dns, p99.9=%dns, max=%dns".formatted(count,
+                    meanNanos(), p50Nanos, p90Nanos, p99Nanos, p999Nanos, maxNanos);
+        }
+    }
+
+    /** values per phase in the array of the native code */
+    private static final int VALUES_PER_PHASE = 7;
+
+    private final Map<Phase, PhaseStats> phases;
+
+    SamplerStats(long[] values) {
+        Map<Phase, PhaseStats> phases = new EnumMap<>(Phase.class);
+        for (Phase phase : Phase.values()) {
+            int o = phase.ordinal() * VALUES_PER_PHASE;
+            phases.put(phase, new PhaseStats(values[o], values[o + 1], values[o + 2], values[o + 3], values[o + 4],
+                    values[o + 5], values[o + 6]));
+        }
+        this.phases = Collections.unmodifiableMap(phases);
+    }
+
+    public PhaseStats get(Phase phase) {
+        return phases.get(phase);
+    }
+
+    public Map<Phase, PhaseStats> getPhases() {
+        return phases;
+    }
+
+    @Override
+    public String toString() {
+        return phases.entrySet().stream().filter(e -> e.getValue().count() > 0)
+                .map(e -> e.getKey() + ": " + e.getValue()).collect(Collectors.joining("\n"));
+    }
+}
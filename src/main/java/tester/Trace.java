@@ -1,7 +1,9 @@
 package tester;
 
 import tester.Frame.JavaFrame;
+import tester.Frame.MethodId;
 import tester.Frame.MethodNameAndClass;
+import tester.Frame.NonJavaFrame;
 import tester.util.Pair;
 import tester.util.Triple;
 
@@ -33,22 +35,108 @@ public class Trace extends AbstractList<Frame> {
      */
     private final int errorCode;
 
+    /**
+     * hash of the raw frames computed by the native code, 0 if unknown
+     */
+    private final long hash;
+
+    /**
+     * this trace is only a handle for the already known trace with the same hash,
+     * see {@link Tracer#setKnownTraceHandles(boolean)}
+     */
+    private final boolean isKnownTraceHandle;
+
     public Trace(int kind, int state, Frame[] frames) {
         this(kind, state, List.of(frames));
     }
 
+    public Trace(int kind, int state, Frame[] frames, long hash) {
+        this(kind, state, List.of(frames), hash);
+    }
+
     public Trace(int kind, int state, List<Frame> frames) {
+        this(kind, state, frames, 0);
+    }
+
+    public Trace(int kind, int state, List<Frame> frames, long hash) {
         this.kind = kind;
         this.state = state;
         this.frames = frames;
         this.errorCode = 1;
+        this.hash = hash;
+        this.isKnownTraceHandle = false;
     }
 
     public Trace(int kind, int state, int errorCode) {
+        this(kind, state, errorCode, 0);
+    }
+
+    public Trace(int kind, int state, int errorCode, long hash) {
         this.frames = List.of();
         this.errorCode = errorCode;
         this.kind = kind;
         this.state = state;
+        this.hash = hash;
+        this.isKnownTraceHandle = false;
+    }
+
+    /**
+     * trace with frames stored in primitive arrays, the frames are materialized lazily,
+     * the methods are resolved in bulk on the first access
+     */
+    Trace(int kind, int state, long hash, long[] methodIds, int[] bcis, byte[] types, byte[] compLevels,
+          long[] pcs) {
+        this(kind, state, new ColumnarFrames(methodIds, bcis, types, compLevels, pcs), hash);
+    }
+
+    /**
+     * trace with frames stored in primitive arrays, created by the native code with the already resolved
+     * distinct methods, every frame stores the index of its method (-1 for non-Java frames),
+     * the frames are materialized lazily
+     */
+    Trace(int kind, int state, long hash, int[] methodIndexes, MethodId[] methods, int[] bcis, byte[] types,
+          byte[] compLevels, long[] pcs) {
+        this(kind, state, new ColumnarFrames(methodIndexes, methods, bcis, types, compLevels, pcs), hash);
+    }
+
+    /**
+     * handle for the known trace with the passed hash, created by the native code
+     */
+    private Trace(long hash) {
+        this.frames = List.of();
+        this.errorCode = 1;
+        this.kind = 0;
+        this.state = 0;
+        this.hash = hash;
+        this.isKnownTraceHandle = true;
+    }
+
+    /**
+     * hash of the raw frames (method ids, bcis, types, compilation levels), 0 if unknown
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * is this only a handle for an already returned trace with the same hash, use {@link #resolve()}
+     */
+    public boolean isKnownTraceHandle() {
+        return isKnownTraceHandle;
+    }
+
+    /**
+     * returns the known trace if this is a handle, this trace otherwise
+     */
+    public Trace resolve() {
+        if (!isKnownTraceHandle) {
+            return this;
+        }
+        Trace trace = Tracer.getKnownTrace(hash);
+        if (trace == null) {
+            throw new IllegalStateException("Unknown trace hash " + Long.toHexString(hash));
+        }
+        return trace;
     }
 
     public boolean hasError() {
@@ -84,6 +172,16 @@ public class Trace extends AbstractList<Frame> {
         return "Trace[length=%d,kind=%d,state=%d]:".formatted(size(), kind, state) + frames.stream().map(f -> "\n  " + f.toString()).collect(Collectors.joining(""));
     }
 
+    /**
+     * resolve the symbols of all non-Java frames in bulk, see {@link NonJavaFrame#getSymbol()}
+     */
+    public void symbolizeNonJavaFrames() {
+        if (hasNonJavaFrames()) {
+            NonJavaFrame.symbolize(frames.stream().filter(f -> f instanceof NonJavaFrame)
+                    .map(f -> (NonJavaFrame) f).toList());
+        }
+    }
+
     @Override
     public boolean equals(Object o) {
         return o instanceof Trace && equals((Trace) o, false);
@@ -101,7 +199,9 @@ public class Trace extends AbstractList<Frame> {
 
     public boolean hasNonJavaFrames() {
         if (_hasNonJavaFrames == 2) {
-            _hasNonJavaFrames = kind != JAVA_TRACE || frames.stream().anyMatch(f -> f.type == Frame.CPP) ? 1 : 0;
+            boolean hasCppFrames = frames instanceof ColumnarFrames columnar ? columnar.containsType(Frame.CPP) :
+                    frames.stream().anyMatch(f -> f.type == Frame.CPP);
+            _hasNonJavaFrames = kind != JAVA_TRACE || hasCppFrames ? 1 : 0;
         }
         return _hasNonJavaFrames == 1;
     }
@@ -126,7 +226,11 @@ public class Trace extends AbstractList<Frame> {
     public void equalsAndThrow(String thisName, Trace other, String otherName, boolean ignoreNonJavaFrames,
                                boolean thisMightBeCutOff, boolean otherMightBeCutOff) {
         List<String> messages = new ArrayList<>();
-        if (!equals(other, ignoreNonJavaFrames, thisMightBeCutOff, otherMightBeCutOff, messages)) {
+        if (!equals(other, ignoreNonJavaFrames, thisMightBeCutOff, otherMightBeCutOff, null)) {
+            // the messages contain the non-Java frames
+            symbolizeNonJavaFrames();
+            other.symbolizeNonJavaFrames();
+            equals(other, ignoreNonJavaFrames, thisMightBeCutOff, otherMightBeCutOff, messages);
             throw new TracesUnequalError(this, thisName + (thisMightBeCutOff ? " cut off" : ""), other, otherName + (otherMightBeCutOff ? " cut off" : ""), messages);
         }
     }
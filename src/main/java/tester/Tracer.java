@@ -2,6 +2,8 @@ package tester;
 
 import tester.Trace.TracesUnequalError;
 
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
@@ -289,6 +291,15 @@ public class Tracer {
      */
     public static native Trace runGST(Thread thread, int depth);
 
+    /**
+     * walk the threads using GetThreadListStackTraces, which walks all threads at a single safe-point
+     * instead of one per thread, so the traces are a consistent snapshot, which is taken at a different point
+     * of the threads' execution than the walks of {@link #runMultiple(Thread[], List, int)}
+     *
+     * @return traces in the order of the passed threads, null for threads that could not be walked
+     */
+    public static native Trace[] runGSTForThreads(Thread[] threads, int depth);
+
     public Trace runASGCT() {
         return runASGCT(depth);
     }
@@ -311,6 +322,7 @@ public class Tracer {
      * walk the current stack using ASGCT
      *
      * @param thread the thread to walk, or null for the current thread
+     * @return null if the thread could not be walked, e.g. a virtual thread that is not mounted
      */
     public static native Trace runASGCTInSignalHandler(Thread thread, int depth);
 
@@ -348,6 +360,7 @@ public class Tracer {
      * walk the current stack using ASGST in a signal handler
      *
      * @param thread thread to walk, null for current thread
+     * @return null if the thread could not be walked, e.g. a virtual thread that is not mounted
      */
     public static native Trace runASGSTInSignalHandler(int options, Thread thread, int depth);
 
@@ -371,6 +384,7 @@ public class Tracer {
      * walk the current stack using ASGST in a separate thread
      *
      * @param thread thread to walk, null for current thread
+     * @return null if the thread could not be walked, e.g. a virtual thread that is not mounted
      */
     public static native Trace runASGSTInSeparateThread(int options, Thread thread, int depth);
 
@@ -418,10 +432,45 @@ public class Tracer {
         return runAndCompare(configurations, depth, thread);
     }
 
+    /**
+     * when a thread was sampled, captured at the start of its signal handler
+     *
+     * @param timestampNanos     CLOCK_MONOTONIC, comparable to {@link System#nanoTime()} on Linux
+     * @param threadCpuTimeNanos CPU time of the sampled thread, -1 if unknown
+     * @param signalDelayNanos   from sending the signal till the signal handler started, -1 if unknown
+     *                           (e.g. for timer and perf event signals)
+     */
+    public record SampleTime(long timestampNanos, long threadCpuTimeNanos, long signalDelayNanos) {
+
+        /**
+         * the index-th triple of the array filled by the native code, null if the thread has not been sampled
+         * in a signal handler
+         */
+        static SampleTime fromArray(long[] times, int index) {
+            long timestamp = times[index * 3];
+            return timestamp == 0 ? null : new SampleTime(timestamp, times[index * 3 + 1], times[index * 3 + 2]);
+        }
+    }
+
     /**
      * trace with the configuration it has been obtained with
+     *
+     * @param time when the thread was sampled, null if the trace wasn't obtained via a signal handler
      */
-    public record ConfiguredTrace(Configuration config, Trace trace, int maxDepth) {
+    public record ConfiguredTrace(Configuration config, Trace trace, int maxDepth, SampleTime time) {
+
+        public ConfiguredTrace(Configuration config, Trace trace, int maxDepth) {
+            this(config, trace, maxDepth, null);
+        }
+
+        /**
+         * replace a known trace handle with the known trace
+         */
+        public ConfiguredTrace resolve() {
+            return trace != null && trace.isKnownTraceHandle() ? new ConfiguredTrace(config, trace.resolve(),
+                    maxDepth, time) : this;
+        }
+
         @Override
         public String toString() {
             return config + ":\n" + trace;
@@ -490,19 +539,44 @@ public class Tracer {
         boolean hasASGCT = configs.stream().anyMatch(c -> c.mode == Mode.ASGCT);
         boolean hasASGCTSig = configs.stream().anyMatch(c -> c.mode == Mode.ASGCT_SIGNAL_HANDLER);
         int[] asgstOptions = configs.stream().filter(c -> c.mode == Mode.ASGST).mapToInt(c -> c.options).toArray();
-        int[] asgstSepThreadOptions =
-                configs.stream().filter(c -> c.mode == Mode.ASGST_SEPARATE_THREAD).mapToInt(c -> c.options).toArray();
-        int[] asgstSigOptions =
-                configs.stream().filter(c -> c.mode == Mode.ASGST_SIGNAL_HANDLER).mapToInt(c -> c.options).toArray();
+        int[] asgstSepThreadOptions = asgstSepThreadOptions(configs);
+        int[] asgstSigOptions = asgstSigOptions(configs);
         Trace[] traces;
+        long[] times = new long[3];
         if (hasASGCTSig || asgstSepThreadOptions.length > 0 || asgstSigOptions.length > 0) {
-            traces = runMultiple(_thread, depth, hasASGCTSig, asgstSepThreadOptions, asgstSigOptions);
+            traces = runMultiple(_thread, depth, hasASGCTSig, asgstSepThreadOptions, asgstSigOptions, times);
         } else {
             traces = new Trace[0];
         }
         if (!sameThread && (hasASGCT || asgstOptions.length > 0)) {
             throw new IllegalStateException("ASGCT and ASGST (non sig or sep thread) can only be run on the current " + "thread");
         }
+        return toConfiguredTraces(configs, depth, traces, SampleTime.fromArray(times, 0));
+    }
+
+    private static int[] asgstSepThreadOptions(List<Configuration> configs) {
+        return configs.stream().filter(c -> c.mode == Mode.ASGST_SEPARATE_THREAD).mapToInt(c -> c.options).toArray();
+    }
+
+    private static int[] asgstSigOptions(List<Configuration> configs) {
+        return configs.stream().filter(c -> c.mode == Mode.ASGST_SIGNAL_HANDLER).mapToInt(c -> c.options).toArray();
+    }
+
+    /**
+     * @param traces result of the native runMultiple call
+     */
+    static List<ConfiguredTrace> toConfiguredTraces(List<Configuration> configs, int depth, Trace[] traces) {
+        return toConfiguredTraces(configs, depth, traces, null);
+    }
+
+    /**
+     * @param traces result of the native runMultiple call
+     * @param time   time of the signal handler that obtained the traces, only used for the signal handler and
+     *               separate thread configurations
+     */
+    static List<ConfiguredTrace> toConfiguredTraces(List<Configuration> configs, int depth, Trace[] traces,
+                                                    SampleTime time) {
+        int asgstSepThreadCount = (int) configs.stream().filter(c -> c.mode == Mode.ASGST_SEPARATE_THREAD).count();
         List<ConfiguredTrace> confTraces = new ArrayList<>();
         int asgstSepThreadIndex = 0;
         int asgstSigIndex = 0;
@@ -510,17 +584,337 @@ public class Tracer {
             switch (c.mode) {
                 case GST -> confTraces.add(new ConfiguredTrace(c, runGST(c.thread, depth), depth));
                 case ASGCT -> confTraces.add(new ConfiguredTrace(c, runASGCT(depth), depth));
-                case ASGCT_SIGNAL_HANDLER -> confTraces.add(new ConfiguredTrace(c, traces[0], depth));
+                case ASGCT_SIGNAL_HANDLER -> confTraces.add(new ConfiguredTrace(c, traces[0], depth, time));
                 case ASGST -> confTraces.add(new ConfiguredTrace(c, runASGST(c.options, depth), depth));
                 case ASGST_SEPARATE_THREAD ->
-                        confTraces.add(new ConfiguredTrace(c, traces[1 + asgstSepThreadIndex++], depth));
+                        confTraces.add(new ConfiguredTrace(c, traces[1 + asgstSepThreadIndex++], depth, time));
                 case ASGST_SIGNAL_HANDLER -> confTraces.add(new ConfiguredTrace(c,
-                        traces[1 + asgstSepThreadOptions.length + asgstSigIndex++], depth));
+                        traces[1 + asgstSepThreadCount + asgstSigIndex++], depth, time));
             }
         }
         return confTraces;
     }
 
+    public ConfiguredTrace[][] runMultiple(Thread[] threads) {
+        return runMultiple(threads, configurations, depth);
+    }
+
+    /**
+     * walks multiple threads with all configurations in a single native call: all threads are signalled before
+     * their traces are collected, so that they are walked in parallel.
+     * Only supports configurations that can walk other threads and don't trigger safe-points (no GST):
+     * GST could only walk the threads after they resumed, at a different point of their execution,
+     * use {@link #runGSTForThreads(Thread[], int)} for a separate snapshot.
+     *
+     * @return traces per thread, in the order of the passed threads, null for threads that could not be walked
+     */
+    public static ConfiguredTrace[][] runMultiple(Thread[] threads, List<Configuration> configs, int depth) {
+        if (configs.stream().anyMatch(c -> !c.mode.supportSpecificThread || c.mode == Mode.GST)) {
+            throw new IllegalArgumentException("Only signal handler and separate thread configurations can be used " +
+                    "to walk multiple threads");
+        }
+        boolean hasASGCTSig = configs.stream().anyMatch(c -> c.mode == Mode.ASGCT_SIGNAL_HANDLER);
+        long[] times = new long[threads.length * 3];
+        Trace[][] traces = runMultipleBatch(threads, depth, hasASGCTSig, asgstSepThreadOptions(configs),
+                asgstSigOptions(configs), times);
+        ConfiguredTrace[][] result = new ConfiguredTrace[threads.length][];
+        for (int i = 0; i < threads.length; i++) {
+            result[i] = traces[i] == null ? null : toConfiguredTraces(configs, depth, traces[i],
+                    SampleTime.fromArray(times, i)).toArray(ConfiguredTrace[]::new);
+        }
+        return result;
+    }
+
+    /** status of a thread in {@link #runMultipleAndCompareNatively}: the thread could not be walked */
+    public static final int NATIVE_COMPARISON_NOT_WALKED = 0;
+    /** status of a thread in {@link #runMultipleAndCompareNatively}: all traces are equal */
+    public static final int NATIVE_COMPARISON_EQUAL = 1;
+    /** status of a thread in {@link #runMultipleAndCompareNatively}: at least two traces are unequal */
+    public static final int NATIVE_COMPARISON_UNEQUAL = 2;
+
+    public ConfiguredTrace[][] runMultipleAndCompareNatively(Thread[] threads, boolean allowOverApproximation,
+                                                             int[] statuses) {
+        return runMultipleAndCompareNatively(threads, configurations, depth, allowOverApproximation, statuses);
+    }
+
+    /**
+     * walks the threads like {@link #runMultiple(Thread[], List, int)}, but compares the traces of every thread in
+     * native code, using the same rules as {@link #compare(List, boolean)}.
+     * Only the traces of threads with unequal traces are materialized, so comparing equal traces doesn't allocate.
+     *
+     * @param statuses filled with the NATIVE_COMPARISON_* status of every thread
+     * @return traces of the threads with unequal traces (null for the other threads), or null if there are none
+     */
+    public static ConfiguredTrace[][] runMultipleAndCompareNatively(Thread[] threads, List<Configuration> configs,
+                                                                    int depth, boolean allowOverApproximation,
+                                                                    int[] statuses) {
+        if (configs.stream().anyMatch(c -> !c.mode.supportSpecificThread || c.mode == Mode.GST)) {
+            throw new IllegalArgumentException("Only signal handler and separate thread configurations can be used " +
+                    "to walk multiple threads");
+        }
+        if (statuses.length < threads.length) {
+            throw new IllegalArgumentException("Status array is too short");
+        }
+        boolean hasASGCTSig = configs.stream().anyMatch(c -> c.mode == Mode.ASGCT_SIGNAL_HANDLER);
+        long[] times = new long[threads.length * 3];
+        Trace[][] traces = runMultipleBatchAndCompare(threads, depth, hasASGCTSig, asgstSepThreadOptions(configs),
+                asgstSigOptions(configs), traceOrder(configs), allowOverApproximation, statuses, times);
+        if (traces == null) {
+            return null;
+        }
+        ConfiguredTrace[][] result = new ConfiguredTrace[threads.length][];
+        for (int i = 0; i < threads.length; i++) {
+            result[i] = traces[i] == null ? null : toConfiguredTraces(configs, depth, traces[i],
+                    SampleTime.fromArray(times, i)).toArray(ConfiguredTrace[]::new);
+        }
+        return result;
+    }
+
+    /**
+     * index of the trace of every configuration in the native trace arrays, see {@link #toConfiguredTraces}
+     */
+    private static int[] traceOrder(List<Configuration> configs) {
+        int asgstSepThreadCount = (int) configs.stream().filter(c -> c.mode == Mode.ASGST_SEPARATE_THREAD).count();
+        int asgstSepThreadIndex = 0;
+        int asgstSigIndex = 0;
+        int[] order = new int[configs.size()];
+        for (int i = 0; i < configs.size(); i++) {
+            order[i] = switch (configs.get(i).mode) {
+                case ASGCT_SIGNAL_HANDLER -> 0;
+                case ASGST_SEPARATE_THREAD -> 1 + asgstSepThreadIndex++;
+                case ASGST_SIGNAL_HANDLER -> 1 + asgstSepThreadCount + asgstSigIndex++;
+                default -> throw new IllegalArgumentException("Unsupported mode " + configs.get(i).mode);
+            };
+        }
+        return order;
+    }
+
+    private static native Trace[][] runMultipleBatchAndCompare(Thread[] threads, int depth, boolean asgctSig,
+                                                               int[] asgstSepThreadOptions, int[] asgstSigOptions,
+                                                               int[] traceOrder, boolean allowOverApproximation,
+                                                               int[] statuses, long[] times);
+
+    /**
+     * returns [asgct sig or null, asgst..., asgst...] for every thread, or null if the thread could not be walked
+     *
+     * @param times filled with the {@link SampleTime} triple of every walked thread
+     */
+    private static native Trace[][] runMultipleBatch(Thread[] threads, int depth, boolean asgctSig,
+                                                     int[] asgstSepThreadOptions, int[] asgstSigOptions,
+                                                     long[] times);
+
+    /**
+     * sample of a thread recorded by the continuous sampling
+     *
+     * @param threadId        Java id of the sampled thread, the mounted virtual thread for samples of carriers
+     * @param carrierThreadId Java id of the carrier that the virtual thread was mounted on, -1 if no virtual
+     *                        thread was mounted (or they are not tracked, see {@link #setVirtualThreadSupport})
+     */
+    public record ContinuousSample(long threadId, long carrierThreadId, List<ConfiguredTrace> traces) {
+
+        public ContinuousSample(long threadId, List<ConfiguredTrace> traces) {
+            this(threadId, -1, traces);
+        }
+
+        public boolean isOfVirtualThread() {
+            return carrierThreadId != -1;
+        }
+    }
+
+    /**
+     * what triggers the samples of the continuous sampling
+     */
+    public enum SamplingTrigger {
+        /** a native thread signals all sampled threads every interval (wall-clock time) */
+        SIGNAL_THREAD,
+        /**
+         * every sampled thread has a timer on its own CPU clock, so threads are sampled proportional to their CPU
+         * usage, falls back to {@link #SIGNAL_THREAD} if not supported
+         */
+        CPU_TIMER,
+        /**
+         * every sampled thread has a perf_event_open PERF_COUNT_SW_CPU_CLOCK event, whose overflow signals are
+         * delivered to the thread, like real profilers do, falls back to {@link #SIGNAL_THREAD} if not supported
+         */
+        PERF_CPU_CLOCK,
+        /**
+         * like {@link #PERF_CPU_CLOCK}, but with the PERF_COUNT_SW_TASK_CLOCK event
+         */
+        PERF_TASK_CLOCK
+    }
+
+    private static List<Configuration> continuousConfigs = List.of();
+    private static int continuousDepth;
+
+    /**
+     * samples all Java threads continuously till {@link #stopContinuousSampling()} is called, using all signal
+     * handler configurations: the signal handlers store the traces in per thread buffers, which are drained by
+     * {@link #drainContinuousSamples(int)}.
+     * Only supports the configurations that walk the stack in the signal handler, stops the previous sampling.
+     *
+     * @param intervalNanos  positive sample interval
+     * @param bufferCapacity positive number of samples per thread, samples are dropped if the buffer of a thread
+     *                       is full
+     */
+    public void startContinuousSampling(long intervalNanos, int bufferCapacity) {
+        startContinuousSampling(intervalNanos, bufferCapacity, SamplingTrigger.SIGNAL_THREAD);
+    }
+
+    public void startContinuousSampling(long intervalNanos, int bufferCapacity, SamplingTrigger trigger) {
+        if (intervalNanos <= 0) {
+            throw new IllegalArgumentException("Sample interval has to be positive: " + intervalNanos);
+        }
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("Buffer capacity has to be positive: " + bufferCapacity);
+        }
+        if (trigger == null) {
+            throw new IllegalArgumentException("No sampling trigger given");
+        }
+        if (configurations.stream().anyMatch(c -> c.mode != Mode.ASGCT_SIGNAL_HANDLER && c.mode != Mode.ASGST_SIGNAL_HANDLER)) {
+            throw new IllegalArgumentException("Only signal handler configurations can be used for continuous sampling");
+        }
+        synchronized (Tracer.class) {
+            if (attachedBuffer != null) {
+                checkBufferCapacity(attachedBuffer, configurations, depth);
+            }
+        }
+        stopContinuousSampling();
+        continuousConfigs = configurations;
+        continuousDepth = depth;
+        startContinuousSampling(depth, hasASGCTSignalConfiguration(), asgstSigOptions(configurations),
+                intervalNanos, bufferCapacity, trigger.ordinal());
+    }
+
+    private static native void startContinuousSampling(int depth, boolean asgctSig, int[] asgstSigOptions,
+                                                       long intervalNanos, int bufferCapacity, int trigger);
+
+    /**
+     * is {@link SamplingTrigger#CPU_TIMER} supported on this platform (only on Linux)
+     */
+    public static native boolean isCpuTimerSupported();
+
+    /**
+     * are {@link SamplingTrigger#PERF_CPU_CLOCK} and {@link SamplingTrigger#PERF_TASK_CLOCK} supported, only on
+     * Linux and if perf_event_open is allowed (see perf_event_paranoid)
+     */
+    public static native boolean isPerfEventSupported();
+
+    /**
+     * stops the continuous sampling, the already recorded samples can still be drained
+     */
+    public static native void stopContinuousSampling();
+
+    /**
+     * obtain up to maxSamples of the recorded samples, takes samples from all threads in turn
+     */
+    public static List<ContinuousSample> drainContinuousSamples(int maxSamples) {
+        long[] threadIds = new long[maxSamples];
+        long[] carrierThreadIds = new long[maxSamples];
+        long[] times = new long[maxSamples * 3];
+        Trace[][] traces = drainContinuousSamples(threadIds, carrierThreadIds, times);
+        List<ContinuousSample> samples = new ArrayList<>();
+        for (int i = 0; i < traces.length; i++) {
+            samples.add(new ContinuousSample(threadIds[i], carrierThreadIds[i],
+                    toConfiguredTraces(continuousConfigs, continuousDepth, traces[i],
+                            SampleTime.fromArray(times, i))));
+        }
+        return samples;
+    }
+
+    /**
+     * returns [asgct sig or null, asgst...] for every drained sample, stores the thread ids and the
+     * {@link SampleTime} triples in the passed arrays
+     */
+    private static native Trace[][] drainContinuousSamples(long[] threadIds, long[] carrierThreadIds,
+                                                          long[] times);
+
+    private static ByteBuffer attachedBuffer;
+
+    /**
+     * registers a direct buffer that {@link #drainContinuousSamplesToBuffer(int)} writes the samples into,
+     * so that draining does not create any Java objects, replaces the previously attached buffer.
+     * The buffer has to be able to hold the largest possible sample of the continuous sampling.
+     */
+    public static synchronized void attachBuffer(ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Only direct buffers can be attached");
+        }
+        checkBufferCapacity(buffer, continuousConfigs, continuousDepth);
+        // keep the buffer reachable as long as the native code writes into it
+        attachedBuffer = buffer;
+        setSampleBuffer(buffer);
+    }
+
+    /**
+     * a sample that does not fit into the empty buffer would block the ring buffer of its thread forever
+     */
+    private static void checkBufferCapacity(ByteBuffer buffer, List<Configuration> configs, int depth) {
+        long maxSampleSize = SampleBuffer.maxSampleSize(1 + asgstSigOptions(configs).length, depth);
+        if (buffer.capacity() < maxSampleSize) {
+            throw new IllegalArgumentException("Buffer capacity " + buffer.capacity() +
+                    " is smaller than the largest possible sample (" + maxSampleSize + " bytes)");
+        }
+    }
+
+    public static synchronized void detachBuffer() {
+        setSampleBuffer(null);
+        attachedBuffer = null;
+    }
+
+    private static native void setSampleBuffer(ByteBuffer buffer);
+
+    /**
+     * write up to maxSamples of the recorded samples into the attached buffer (overwriting its content),
+     * takes samples from all threads in turn and stops early if the buffer is full
+     *
+     * @return lazy view on the written samples, only valid till the next call
+     */
+    public static synchronized SampleBuffer drainContinuousSamplesToBuffer(int maxSamples) {
+        if (attachedBuffer == null) {
+            throw new IllegalStateException("No buffer attached");
+        }
+        int size = writeContinuousSamples(maxSamples);
+        return new SampleBuffer(attachedBuffer, size, continuousConfigs, continuousDepth);
+    }
+
+    /**
+     * @return number of written bytes
+     */
+    private static native int writeContinuousSamples(int maxSamples);
+
+    /**
+     * number of samples that were dropped because the buffer of the sampled thread was full
+     */
+    public static native long getLostContinuousSamples();
+
+    /**
+     * walks and samples that were dropped since the start of the agent
+     *
+     * @param signalFailed the signal for a walk could not be sent to the thread
+     * @param timedOut     the thread didn't handle the signal for a walk in time (see
+     *                     {@link #setWalkRequestTimeout(long)}), e.g. because it ended
+     * @param bufferFull   continuous samples that were dropped, see {@link #getLostContinuousSamples()}
+     */
+    public record DroppedSamples(long signalFailed, long timedOut, long bufferFull) {
+
+        public long total() {
+            return signalFailed + timedOut + bufferFull;
+        }
+    }
+
+    public static DroppedSamples getDroppedSamples() {
+        long[] values = getDroppedSampleCounts();
+        return new DroppedSamples(values[0], values[1], values[2]);
+    }
+
+    private static native long[] getDroppedSampleCounts();
+
+    /**
+     * how long a walk waits for the signal handler of the walked thread to start (one second by default),
+     * the walk is dropped afterwards, a negative timeout waits forever
+     */
+    public static native void setWalkRequestTimeout(long timeoutNanos);
+
     public List<ConfiguredTrace> runMultiple(Thread thread) {
         return runMultiple(configurations, thread);
     }
@@ -541,7 +935,7 @@ public class Tracer {
      * returns [asgct sig or null, asgst..., asgst...]
      */
     private static native Trace[] runMultiple(Thread thread, int depth, boolean asgctSig, int[] asgstSepThreadOptions
-            , int[] asgstSigOptions);
+            , int[] asgstSigOptions, long[] times);
 
     /**
      * walk the current stack using the given configs, throws an error
@@ -563,6 +957,7 @@ public class Tracer {
     }
 
     public Trace compare(List<ConfiguredTrace> traces, boolean allowOverApproximation) {
+        traces = traces.stream().map(ConfiguredTrace::resolve).toList();
         var first = traces.stream().max(Comparator.comparingInt(a -> a.trace.size())).orElseThrow();
         for (var other : traces) {
             if (other != first) {
@@ -573,7 +968,151 @@ public class Tracer {
     }
 
     /**
-     * return all Java threads
+     * return all live Java threads that can be walked, from a registry that is maintained by the thread start
+     * and end events
      */
     public static native Thread[] getThreads();
+
+    /**
+     * track which virtual threads are mounted on which carrier threads, disabled by default:
+     * afterwards the mounted virtual threads can be walked like platform threads (the carrier is signalled and
+     * walks the stack of the virtual thread), and the continuous samples of carriers are attributed to the
+     * mounted virtual thread. This only costs time when virtual threads are mounted and unmounted,
+     * not when threads are sampled.
+     *
+     * @return false if the JVM (or the JDK that the agent was compiled against) has no virtual thread support
+     */
+    public static native boolean setVirtualThreadSupport(boolean enable);
+
+    /**
+     * return the currently mounted virtual threads, only if enabled via {@link #setVirtualThreadSupport(boolean)},
+     * they are not contained in {@link #getThreads()} and might be unmounted before they are walked
+     */
+    public static native Thread[] getMountedVirtualThreads();
+
+    private static final Method isVirtualMethod = findIsVirtualMethod();
+
+    private static Method findIsVirtualMethod() {
+        try {
+            return Thread.class.getMethod("isVirtual");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thread.isVirtual, which is not available in the JDK 17 API, false on JDKs without virtual threads
+     */
+    public static boolean isVirtual(Thread thread) {
+        if (isVirtualMethod == null) {
+            return false;
+        }
+        try {
+            return (boolean) isVirtualMethod.invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * return up to maxThreads randomly selected threads of {@link #getThreads()}, without the excluded thread,
+     * costs O(maxThreads) and not O(all threads)
+     */
+    public static native Thread[] selectThreads(int maxThreads, long excludedThreadId);
+
+    /**
+     * like {@link #selectThreads(int, long)}, but only selects threads that consumed CPU time since the previous
+     * call (or since they started), weighted by the consumed CPU time, so that parked and blocked threads are
+     * skipped, only supported on Linux (returns no threads otherwise)
+     */
+    public static native Thread[] selectOnCpuThreads(int maxThreads, long excludedThreadId);
+
+    /**
+     * record the latencies of the sampling phases for {@link #getSamplerStats()}, disabled by default,
+     * as it costs two clock reads per phase
+     */
+    public static native void setSamplerStatsEnabled(boolean enabled);
+
+    public static native boolean isSamplerStatsEnabled();
+
+    public static native void resetSamplerStats();
+
+    /**
+     * latency histograms of the sampling phases, recorded since the last reset while enabled
+     */
+    public static SamplerStats getSamplerStats() {
+        return new SamplerStats(getSamplerStatValues());
+    }
+
+    private static native long[] getSamplerStatValues();
+
+    /**
+     * configure how the native waits (requesters, signal handlers and walker threads) spin before they block
+     *
+     * @param spinIterations  busy spins (with a cpu pause) before yielding
+     * @param yieldIterations yields before blocking
+     */
+    public static native void setWaitStrategy(int spinIterations, int yieldIterations);
+
+    /**
+     * see {@link #setWaitStrategy(int, int)}
+     */
+    public record WaitStrategy(int spinIterations, int yieldIterations) {
+    }
+
+    public static void setWaitStrategy(WaitStrategy strategy) {
+        setWaitStrategy(strategy.spinIterations(), strategy.yieldIterations());
+    }
+
+    /**
+     * the current wait strategy, e.g. to restore it later
+     */
+    public static WaitStrategy getWaitStrategy() {
+        int[] values = getWaitStrategyValues();
+        return new WaitStrategy(values[0], values[1]);
+    }
+
+    private static native int[] getWaitStrategyValues();
+
+    /**
+     * set the number of native threads that walk the stacks for {@link Mode#ASGST_SEPARATE_THREAD}, every thread
+     * walks one target at a time, at least one thread is used
+     */
+    public static native void setWalkerThreadCount(int count);
+
+    public static native int getWalkerThreadCount();
+
+    /**
+     * if enabled, traces that are equal (same hash) to an already returned trace are returned as lightweight
+     * handles (see {@link Trace#isKnownTraceHandle()}), which can be resolved via {@link Trace#resolve()}.
+     * Only affects the traces returned to the calling thread, other threads still get materialized traces.
+     * The known traces are shared by all threads and never evicted, new traces are not remembered anymore
+     * once they use an estimated 64MB, see {@link #clearKnownTraces()}.
+     */
+    public static native void setKnownTraceHandles(boolean enable);
+
+    /**
+     * returns the first trace with the passed hash that has been returned while known trace handles were enabled,
+     * or null
+     */
+    public static native Trace getKnownTrace(long hash);
+
+    /**
+     * forget all known traces (of all threads), handles for them can't be resolved afterwards
+     */
+    public static native void clearKnownTraces();
+
+    /**
+     * method id objects for the passed jmethodIDs in a single call, used to materialize frames transferred as
+     * primitive arrays, null for 0 and for methods that are not available anymore
+     */
+    static native Frame.MethodId[] getMethodIds(long[] methodIds);
+
+    /**
+     * resolve the program counters of non-Java frames to library, function and offset, using dladdr and the
+     * symbol tables of the libraries, which are indexed on first use, the results are cached
+     *
+     * @return symbols in the order of the pcs, null for pcs that are not part of a library
+     */
+    static native Frame.NativeSymbol[] symbolize(long[] pcs);
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include "trace.hpp"
+#include "jni.h"
+#include <profile.h>
+#include <stdlib.h>
+
+// compares raw traces without materializing them,
+// mirrors Trace.equals, Frame.JavaFrame.equals and Tracer.ConfiguredTrace.checkEquality
+
+/** ASGST options of tester.Tracer.Options */
+const int OPTION_INCLUDE_C_FRAMES = 1;
+const int OPTION_INCLUDE_NON_JAVA_THREADS = 2;
+const int OPTION_INCLUDE_WALK_DURING_UNSAFE_STATES = 4;
+
+/** see Frame.JavaFrame.ALLOWED_BCI_DIFFERENCE */
+const int ALLOWED_BCI_DIFFERENCE = 10;
+
+/** a frame like the tester.Frame that would be created for it */
+struct ComparableFrame {
+  FrameType type;
+  int compLevel;
+  int bci;
+  jmethodID method;
+  void *pc;
+
+  bool isNative() const {
+    return type == FrameType::native || type == FrameType::asgctNative;
+  }
+
+  bool isASGCT() const {
+    return type == FrameType::asgct || type == FrameType::asgctNative;
+  }
+
+  bool isCpp() const {
+    return type == FrameType::cpp;
+  }
+
+  bool operator==(const ComparableFrame &other) const {
+    if (isCpp() || other.isCpp()) {
+      return isCpp() && other.isCpp() && pc == other.pc;
+    }
+    if (method != other.method || isNative() != other.isNative()) {
+      return false;
+    }
+    if (isNative()) {
+      return true;
+    }
+    if (bci != other.bci) {
+      return abs(bci - other.bci) < ALLOWED_BCI_DIFFERENCE;
+    }
+    if (isASGCT() || other.isASGCT()) {
+      return true; // compilation level is not recorded for AsyncGetCallTrace
+    }
+    return compLevel == other.compLevel && type == other.type;
+  }
+};
+
+/** view on a raw ASGCT or ASGST trace without the tracer frames, like the tester.Trace that would be created */
+class ComparableTrace {
+  ASGCT_CallFrame *asgctFrames = nullptr;
+  ASGST_CallFrame *asgstFrames = nullptr;
+  int length = 0;
+
+public:
+  int kind;
+  int state;
+  int errorCode;
+  int options;
+  int maxDepth;
+
+  ComparableTrace(ASGCT_CallTrace *trace, int maxDepth) : options(0), maxDepth(maxDepth) {
+    int start = trace->num_frames > 0 ? countFirstTracerFrames(trace) : 0;
+    asgctFrames = trace->frames + start;
+    length = std::max(trace->num_frames - start, 0);
+    kind = ASGST_JAVA_TRACE;
+    state = -1;
+    errorCode = trace->num_frames < 0 ? trace->num_frames : 1;
+  }
+
+  ComparableTrace(ASGST_CallTrace *trace, int options, int maxDepth) : options(options), maxDepth(maxDepth) {
+    int start = trace->num_frames > 0 ? countFirstTracerFrames(trace) : 0;
+    asgstFrames = trace->frames + start;
+    length = std::max(trace->num_frames - start, 0);
+    kind = trace->kind;
+    state = trace->state;
+    errorCode = trace->num_frames < 0 ? trace->num_frames : 1;
+  }
+
+  int size() const {
+    return length;
+  }
+
+  bool hasError() const {
+    return errorCode <= 0;
+  }
+
+  bool mightBeCutOff() const {
+    return length == maxDepth;
+  }
+
+  bool includesCFrames() const {
+    return (options & OPTION_INCLUDE_C_FRAMES) != 0;
+  }
+
+  /** negative indexes count from the end, like Trace.get */
+  ComparableFrame get(int index) const {
+    if (index < 0) {
+      index += length;
+    }
+    if (index < 0 || index >= length) {
+      // only happens for empty traces, Trace.get would throw
+      return {FrameType::cpp, 0, 0, nullptr, nullptr};
+    }
+    if (asgctFrames != nullptr) {
+      ASGCT_CallFrame *frame = &asgctFrames[index];
+      if (frame->lineno == -3) {
+        return {FrameType::asgctNative, -2, -1, frame->method_id, nullptr};
+      }
+      return {FrameType::asgct, -2, frame->lineno, frame->method_id, nullptr};
+    }
+    ASGST_CallFrame *frame = &asgstFrames[index];
+    if (frame->type == ASGST_FRAME_CPP) {
+      return {FrameType::cpp, 0, 0, nullptr, ((ASGST_NonJavaFrame*)frame)->pc};
+    }
+    ASGST_JavaFrame *javaFrame = (ASGST_JavaFrame*)frame;
+    return {(FrameType)javaFrame->type, javaFrame->comp_level, javaFrame->bci == 65535 ? -1 : javaFrame->bci,
+      javaFrame->method_id, nullptr};
+  }
+
+  /** size of Trace.withoutNonJavaFrames */
+  int javaFrameCount() const {
+    if (kind != ASGST_JAVA_TRACE) {
+      return 0;
+    }
+    int count = 0;
+    for (int i = 0; i < length; i++) {
+      count += get(i).isCpp() ? 0 : 1;
+    }
+    return count;
+  }
+
+  /** see Trace.topMostJavaFrameIndex */
+  int topMostJavaFrameIndex() const {
+    for (int i = 0; i < length; i++) {
+      if (get(i).type == FrameType::java) {
+        return i;
+      }
+    }
+    return -1;
+  }
+};
+
+/**
+ * compares the frames of both traces, starting at the passed indexes, see Trace.equals(int, Trace, int, ...)
+ *
+ * @param onlyJavaFrames skip the non-Java frames and use the Java frame counts as lengths
+ */
+bool equalFrames(const ComparableTrace &a, int aStart, const ComparableTrace &b, int bStart, bool onlyJavaFrames) {
+  int aLength = onlyJavaFrames ? a.javaFrameCount() : a.size() - aStart;
+  int bLength = onlyJavaFrames ? b.javaFrameCount() : b.size() - bStart;
+  if (aLength != bLength) {
+    if (a.mightBeCutOff() && aLength < bLength) {
+      bLength = aLength;
+    } else if (b.mightBeCutOff() && bLength < aLength) {
+      aLength = bLength;
+    } else {
+      return false;
+    }
+  }
+  int aIndex = aStart;
+  int bIndex = bStart;
+  for (int i = 0; i < aLength; i++, aIndex++, bIndex++) {
+    if (onlyJavaFrames) {
+      while (a.get(aIndex).isCpp()) aIndex++;
+      while (b.get(bIndex).isCpp()) bIndex++;
+    }
+    if (!(a.get(aIndex) == b.get(bIndex))) {
+      return false;
+    }
+  }
+  return true;
+}
+
+/** see Trace.equals(Trace, boolean, boolean, boolean, List) */
+bool equalTraces(const ComparableTrace &a, const ComparableTrace &b, bool ignoreNonJavaFrames) {
+  if (a.errorCode != b.errorCode || a.kind != b.kind) {
+    return false;
+  }
+  if (ignoreNonJavaFrames) {
+    int aJava = a.javaFrameCount();
+    int bJava = b.javaFrameCount();
+    if ((aJava == 0 && a.size() != 0) || (bJava == 0 && b.size() != 0)) {
+      return true;
+    }
+    return equalFrames(a, 0, b, 0, true);
+  }
+  return equalFrames(a, a.topMostJavaFrameIndex(), b, b.topMostJavaFrameIndex(), false);
+}
+
+/** see Tracer.ConfiguredTrace.checkEquality */
+bool checkEquality(const ComparableTrace &a, const ComparableTrace &b, bool allowOverApproximation) {
+  if (allowOverApproximation && a.hasError() != b.hasError()) {
+    for (int option : {OPTION_INCLUDE_C_FRAMES, OPTION_INCLUDE_NON_JAVA_THREADS,
+                       OPTION_INCLUDE_WALK_DURING_UNSAFE_STATES}) {
+      bool aIncludes = (a.options & option) != 0;
+      bool bIncludes = (b.options & option) != 0;
+      if (aIncludes != bIncludes && aIncludes == !a.hasError()) {
+        return true;
+      }
+    }
+  }
+  return equalTraces(a, b, !a.includesCFrames() || !b.includesCFrames());
+}
+
+/** see Tracer.compare, the traces are in the order of the configurations */
+bool compareTraces(const std::vector<ComparableTrace> &traces, bool allowOverApproximation) {
+  if (traces.empty()) {
+    return true;
+  }
+  size_t longest = 0;
+  for (size_t i = 1; i < traces.size(); i++) {
+    if (traces[i].size() > traces[longest].size()) {
+      longest = i;
+    }
+  }
+  for (size_t i = 0; i < traces.size(); i++) {
+    if (i != longest && !checkEquality(traces[longest], traces[i], allowOverApproximation)) {
+      return false;
+    }
+  }
+  return true;
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include <pthread.h>
+#include <signal.h>
+#include <stdio.h>
+#include <time.h>
+
+#ifndef sigev_notify_thread_id
+#define sigev_notify_thread_id _sigev_un._tid
+#endif
+
+/** CPU time the thread consumed in nanoseconds, -1 if not available (only supported on Linux) */
+inline long threadCpuTimeNanos(pthread_t thread) {
+#if defined(__linux__)
+  clockid_t clock;
+  struct timespec ts;
+  if (pthread_getcpuclockid(thread, &clock) != 0 || clock_gettime(clock, &ts) != 0) {
+    return -1;
+  }
+  return ts.tv_sec * 1000000000L + ts.tv_nsec;
+#else
+  return -1;
+#endif
+}
+
+/**
+ * Timer that sends SIGPROF to a single thread whenever the thread consumed the interval of CPU time,
+ * so the thread is sampled proportional to its CPU usage, only supported on Linux
+ */
+class ThreadCpuTimer {
+#if defined(__linux__)
+  timer_t timer;
+#endif
+  bool running = false;
+
+public:
+
+  static bool isSupported() {
+#if defined(__linux__)
+    return true;
+#else
+    return false;
+#endif
+  }
+
+  /**
+   * @param thread the thread whose CPU time is measured
+   * @param osThreadId the kernel id of the thread, it receives the signals
+   * @return false if the timer could not be created
+   */
+  bool start(pthread_t thread, long osThreadId, long intervalNanos) {
+    stop();
+#if defined(__linux__)
+    clockid_t clock;
+    if (pthread_getcpuclockid(thread, &clock) != 0) {
+      return false;
+    }
+    struct sigevent event = {};
+    event.sigev_notify = SIGEV_THREAD_ID;
+    event.sigev_signo = SIGPROF;
+    event.sigev_notify_thread_id = (pid_t)osThreadId;
+    if (timer_create(clock, &event, &timer) != 0) {
+      perror("timer_create");
+      return false;
+    }
+    struct itimerspec spec;
+    spec.it_interval.tv_sec = intervalNanos / 1000000000;
+    spec.it_interval.tv_nsec = intervalNanos % 1000000000;
+    spec.it_value = spec.it_interval;
+    if (timer_settime(timer, 0, &spec, nullptr) != 0) {
+      perror("timer_settime");
+      timer_delete(timer);
+      return false;
+    }
+    running = true;
+    return true;
+#else
+    return false;
+#endif
+  }
+
+  void stop() {
+#if defined(__linux__)
+    if (running) {
+      timer_delete(timer);
+    }
+#endif
+    running = false;
+  }
+};
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <stdlib.h>
+#include <stdexcept>
+
+/** initial number of frames of a frame buffer, most traces are shallower */
+const size_t INITIAL_FRAME_BUFFER_SIZE = 128;
+
+/**
+ * Reusable buffer for the frames of a trace, it only grows when a deeper trace is requested.
+ * Growing allocates, so it has to happen before the buffer is passed to a signal handler or walker.
+ */
+template <typename F> class FrameBuffer {
+  F *frames = nullptr;
+  size_t capacity = 0;
+
+public:
+  FrameBuffer() = default;
+
+  FrameBuffer(FrameBuffer &&other) : frames(other.frames), capacity(other.capacity) {
+    other.frames = nullptr;
+    other.capacity = 0;
+  }
+
+  FrameBuffer(const FrameBuffer&) = delete;
+  FrameBuffer& operator=(const FrameBuffer&) = delete;
+
+  ~FrameBuffer() {
+    free(frames);
+  }
+
+  /** returns a buffer with space for at least depth frames */
+  F* ensure(size_t depth) {
+    if (depth > capacity) {
+      size_t newCapacity = std::max({depth, capacity * 2, INITIAL_FRAME_BUFFER_SIZE});
+      F *newFrames = (F*)realloc(frames, newCapacity * sizeof(F));
+      if (newFrames == nullptr) {
+        throw std::bad_alloc();
+      }
+      frames = newFrames;
+      capacity = newCapacity;
+    }
+    return frames;
+  }
+
+  F* get() {
+    return frames;
+  }
+
+  size_t size() const {
+    return capacity;
+  }
+};
+
+/**
+ * Returns a frame buffer of the current thread with space for at least depth frames,
+ * every frame type and index has its own buffer, which is reused by the following calls
+ */
+template <typename F, int index = 0> F* threadLocalFrames(size_t depth) {
+  static thread_local FrameBuffer<F> buffer;
+  return buffer.ensure(depth);
+}
@@ -29,9 +29,12 @@
 #define _XOPEN_SOURCE 600
 #endif
 
+#include <algorithm>
 #include <array>
 #include <assert.h>
+#include <atomic>
 #include <chrono>
+#include <sched.h>
 #include <signal.h>
 #include <stdio.h>
 #include <stddef.h>
@@ -42,6 +45,7 @@
 #include <sys/ucontext.h>
 #include <ucontext.h>
 #include <utility>
+#include <vector>
 #include "jni.h"
 #include "jvmti.h"
 #include "profile.h"
@@ -101,10 +105,47 @@ void ensureSuccess(jvmtiError err, const char *msg) {
   }
 }
 
+/**
+ * The jmethodIDs of all tester.Tracer methods, sorted, they are obtained once when the class is prepared
+ * (or primed), so that detecting tracer frames doesn't need any JVMTI calls
+ */
+class TracerMethods {
+  std::atomic<const std::vector<jmethodID>*> methods = {nullptr};
+
+public:
+
+  void addIfTracerClass(jclass klass, jmethodID *classMethods, jint count) {
+    if (methods.load() != nullptr) {
+      return;
+    }
+    JvmtiDeallocator<char*> className;
+    if (jvmti->GetClassSignature(klass, className.get_addr(), nullptr) != JVMTI_ERROR_NONE ||
+        strcmp(className.get(), "Ltester/Tracer;") != 0) {
+      return;
+    }
+    auto *sorted = new std::vector<jmethodID>(classMethods, classMethods + count);
+    std::sort(sorted->begin(), sorted->end());
+    const std::vector<jmethodID> *expected = nullptr;
+    if (!methods.compare_exchange_strong(expected, sorted)) {
+      delete sorted;
+    }
+  }
+
+  /** null if the tester.Tracer class has not been prepared yet */
+  const std::vector<jmethodID>* get() {
+    return methods.load();
+  }
+};
+
+static TracerMethods tracerMethods;
+
 static void GetJMethodIDs(jclass klass) {
   jint method_count = 0;
   JvmtiDeallocator<jmethodID*> methods;
   jvmtiError err = jvmti->GetClassMethods(klass, &method_count, methods.get_addr());
+  if (err == JVMTI_ERROR_NONE) {
+    tracerMethods.addIfTracerClass(klass, methods.get(), method_count);
+  }
 }
 
 // assumes that getcontext is called in the beginning of the function
@@ -153,6 +194,10 @@ bool isCppFrame(ASGST_CallFrame frame, const char* msg_prefix) {
 }
 
 bool isTracerMethod(jmethodID method) {
+  const std::vector<jmethodID> *methods = tracerMethods.get();
+  if (methods != nullptr) {
+    return std::binary_search(methods->begin(), methods->end(), method);
+  }
   jclass klass;
   JvmtiDeallocator<char*> className;
   ensureSuccess(jvmti->GetMethodDeclaringClass(method, &klass), "get declaring class");
@@ -444,56 +489,282 @@ long get_thread_id() {
 
 typedef jlong javaThreadId_t;
 
-/** helps with Java threads */
-class ThreadIdMap {
+/**
+ * Lock-free map from positive ids to values (open addressing with linear probing),
+ * lookups are async-signal-safe, so they can be used in signal handlers.
+ *
+ * Only a single thread may add or remove a given key at a time (e.g. a thread its own id), different keys can
+ * be modified concurrently. Slots of removed keys are reused, so readers re-check the key after reading the value.
+ * A full table is replaced by a new one without the removed keys (RCU-style): only this rare resize waits for the
+ * other writers and for the readers of the old table, before it frees it.
+ */
+template <typename V> class LockFreeIdMap {
+
+  static const int64_t EMPTY = 0;
+  static const int64_t TOMBSTONE = -1;
+  // slot is claimed, but its value is not written yet
+  static const int64_t BUSY = -2;
+
+  struct Slot {
+    std::atomic<int64_t> key = {EMPTY};
+    std::atomic<V> value;
+  };
+
+  struct Table {
+    size_t capacity;
+    Slot *slots;
+    // slots that were ever claimed, tombstones are only reused by keys with the same probe path
+    std::atomic<size_t> claimed = {0};
+
+    Table(size_t capacity) : capacity(capacity), slots(new Slot[capacity]) {}
+
+    ~Table() {
+      delete[] slots;
+    }
+
+    size_t index(int64_t key) const {
+      uint64_t value = (uint64_t)key;
+      value ^= value >> 33;
+      value *= 0xff51afd7ed558ccdULL;
+      return (size_t)(value ^ (value >> 33)) & (capacity - 1);
+    }
+
+    Slot* find(int64_t key) const {
+      for (size_t i = 0, index = this->index(key); i < capacity; i++, index = (index + 1) & (capacity - 1)) {
+        int64_t current = slots[index].key.load(std::memory_order_acquire);
+        if (current == key) {
+          return &slots[index];
+        }
+        if (current == EMPTY) {
+          return nullptr;
+        }
+      }
+      return nullptr;
+    }
+
+    /** claims a slot for the key, returns null if the table is full */
+    Slot* claim(int64_t key) {
+      for (size_t i = 0, index = this->index(key); i < capacity; i++, index = (index + 1) & (capacity - 1)) {
+        Slot *slot = &slots[index];
+        int64_t current = slot->key.load();
+        if (current == TOMBSTONE && slot->key.compare_exchange_strong(current, BUSY)) {
+          return slot;
+        }
+        if (current == EMPTY) {
+          if (claimed.load() * 4 >= capacity * 3) {
+            return nullptr;
+          }
+          if (slot->key.compare_exchange_strong(current, BUSY)) {
+            claimed++;
+            return slot;
+          }
+        }
+      }
+      return nullptr;
+    }
+
+    void put(Slot *slot, int64_t key, V value) {
+      // release, so that readers that see the value also see that the slot is not theirs anymore
+      slot->value.store(value, std::memory_order_release);
+      slot->key.store(key, std::memory_order_release);
+    }
+
+    /**
+     * value of the slot if it still has the key, a removed key's slot might have been reused
+     * for another key after the reader found it
+     */
+    bool readIfKey(const Slot *slot, int64_t key, V &value) const {
+      V current = slot->value.load(std::memory_order_acquire);
+      if (slot->key.load(std::memory_order_acquire) != key) {
+        return false;
+      }
+      value = current;
+      return true;
+    }
+  };
+
+  const V notFound;
+  std::atomic<Table*> table;
+  std::atomic<size_t> size_ = {0};
+  // lookups that currently use the table
+  mutable std::atomic<int> readers = {0};
+  // puts and removes that currently use the table
+  std::atomic<int> writers = {0};
+  std::atomic<bool> resizing = {false};
+
+  static size_t tableCapacity(size_t size) {
+    size_t capacity = 64;
+    while (capacity < size * 4) {
+      capacity *= 2;
+    }
+    return capacity;
+  }
+
+  void enterWriter() {
+    while (true) {
+      while (resizing.load()) {
+        sched_yield();
+      }
+      writers++;
+      if (!resizing.load()) {
+        return;
+      }
+      writers--;
+    }
+  }
 
-  std::recursive_mutex
-    threadToJavaIdMutex; // hold this mutex while working with threadToJavaId
+  void exitWriter() {
+    writers--;
+  }
 
-  std::unordered_map<long, javaThreadId_t> threadToJavaId;
-  std::unordered_map<javaThreadId_t, long> javaIdToThread;
+  /** replaces the full table, returns without resizing if another thread resizes */
+  void resize(Table *full) {
+    bool expected = false;
+    if (!resizing.compare_exchange_strong(expected, true)) {
+      return;
+    }
+    while (writers.load() > 0) {
+      sched_yield();
+    }
+    if (table.load() == full) {
+      Table *next = new Table(tableCapacity(size_ + 1));
+      for (size_t i = 0; i < full->capacity; i++) {
+        int64_t key = full->slots[i].key.load();
+        if (key > 0) {
+          next->put(next->claim(key), key, full->slots[i].value.load());
+        }
+      }
+      table.store(next);
+      // readers that started after the store use the new table
+      while (readers.load() > 0) {
+        sched_yield();
+      }
+      delete full;
+    }
+    resizing = false;
+  }
 
 public:
-  javaThreadId_t getJavaThreadId(long thread) {
-    std::lock_guard<std::recursive_mutex> lock(threadToJavaIdMutex);
-    auto it = threadToJavaId.find(thread);
-    if (it == threadToJavaId.end()) {
-      return -1;
+
+  LockFreeIdMap(V notFound) : notFound(notFound), table(new Table(tableCapacity(0))) {
+    static_assert(sizeof(V) <= sizeof(int64_t), "values have to fit into a lock-free atomic");
+  }
+
+  LockFreeIdMap(const LockFreeIdMap&) = delete;
+  LockFreeIdMap& operator=(const LockFreeIdMap&) = delete;
+
+  ~LockFreeIdMap() {
+    delete table.load();
+  }
+
+  /** async-signal-safe */
+  V get(int64_t key) const {
+    if (key <= 0) {
+      return notFound;
+    }
+    readers++;
+    Table *current = table.load();
+    Slot *slot = current->find(key);
+    V value = notFound;
+    if (slot != nullptr && !current->readIfKey(slot, key, value)) {
+      value = notFound;
+    }
+    readers--;
+    return value;
+  }
+
+  /** key has to be positive, replaces the previous value, allocates if the table is full */
+  void put(int64_t key, V value) {
+    while (true) {
+      enterWriter();
+      Table *current = table.load();
+      Slot *slot = current->find(key);
+      if (slot != nullptr) {
+        slot->value.store(value);
+        exitWriter();
+        return;
+      }
+      slot = current->claim(key);
+      if (slot != nullptr) {
+        current->put(slot, key, value);
+        size_++;
+        exitWriter();
+        return;
+      }
+      exitWriter();
+      resize(current);
     }
-    return it->second;
   }
 
-  long getThread(javaThreadId_t id) {
-    std::lock_guard<std::recursive_mutex> lock(threadToJavaIdMutex);
-    auto it = javaIdToThread.find(id);
-    if (it == javaIdToThread.end()) {
-      return 0;
+  void remove(int64_t key) {
+    if (key <= 0) {
+      return;
+    }
+    enterWriter();
+    Slot *slot = table.load()->find(key);
+    if (slot != nullptr) {
+      slot->value.store(notFound, std::memory_order_relaxed);
+      slot->key.store(TOMBSTONE, std::memory_order_release);
+      size_--;
     }
-    return it->second;
+    exitWriter();
   }
 
+  size_t size() const {
+    return size_;
+  }
+
+  /** calls the function with every key and value, concurrent modifications might be missed */
+  template <typename F> void forEach(F function) const {
+    readers++;
+    Table *current = table.load();
+    for (size_t i = 0; i < current->capacity; i++) {
+      int64_t key = current->slots[i].key.load(std::memory_order_acquire);
+      V value;
+      if (key > 0 && current->readIfKey(&current->slots[i], key, value)) {
+        function(key, value);
+      }
+    }
+    readers--;
+  }
+};
+
+/** helps with Java threads, all lookups are async-signal-safe */
+class ThreadIdMap {
+
+  LockFreeIdMap<javaThreadId_t> threadToJavaId{-1};
+  LockFreeIdMap<long> javaIdToThread{0};
+
+public:
+  /** async-signal-safe */
+  javaThreadId_t getJavaThreadId(long thread) {
+    return threadToJavaId.get(thread);
+  }
+
+  /** async-signal-safe */
+  long getThread(javaThreadId_t id) {
+    return javaIdToThread.get(id);
+  }
+
+  /** only call for the current thread */
   void addThread(long thread, javaThreadId_t id) {
-    std::lock_guard<std::recursive_mutex> lock(threadToJavaIdMutex);
-    threadToJavaId[thread] = id;
-    javaIdToThread[id] = thread;
+    threadToJavaId.put(thread, id);
+    javaIdToThread.put(id, thread);
   }
 
+  /** only call for the current thread */
   void removeThread(long thread) {
-    std::lock_guard<std::recursive_mutex> lock(threadToJavaIdMutex);
-    auto it = threadToJavaId.find(thread);
-    if (it == threadToJavaId.end()) {
+    javaThreadId_t id = threadToJavaId.get(thread);
+    if (id == -1) {
       return;
     }
-    javaIdToThread.erase(it->second);
-    threadToJavaId.erase(it);
+    javaIdToThread.remove(id);
+    threadToJavaId.remove(thread);
   }
 
   std::vector<javaThreadId_t> getAllJavaThreadIds() {
-    std::lock_guard<std::recursive_mutex> lock(threadToJavaIdMutex);
     std::vector<javaThreadId_t> result;
-    for (auto it = javaIdToThread.begin(); it != javaIdToThread.end(); it++) {
-      result.push_back(it->first);
-    }
+    javaIdToThread.forEach([&](int64_t id, long) { result.push_back(id); });
     return result;
   }
 
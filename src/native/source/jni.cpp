@@ -27,10 +27,20 @@
 #include "tester_Tracer.h"
 #include "helper.hpp"
 #include "trace.hpp"
+#include "wait.hpp"
+#include "ring_buffer.hpp"
+#include "cpu_timer.hpp"
+#include "frame_buffer.hpp"
+#include "compare.hpp"
+#include "sample_buffer.hpp"
+#include "stats.hpp"
+#include "perf_event.hpp"
+#include "symbols.hpp"
 #include <algorithm>
 #include <assert.h>
 #include <cassert>
 #include <chrono>
+#include <cmath>
 #include <cstdio>
 #include <cstring>
 #include <dirent.h>
@@ -69,9 +79,6 @@
 
 #include <sys/resource.h>
 
-/** maximum size of stack trace arrays */
-const int MAX_DEPTH = 1024;
-
 static JavaVM *jvm;
 
 static ThreadIdMap threadIdMap;
@@ -79,99 +86,359 @@ static ThreadIdMap threadIdMap;
 struct ThreadState {
   pthread_t thread;
   JNIEnv *env;
+  javaThreadId_t javaThreadId;
+  /** kernel thread id, see get_thread_id */
+  long osThreadId;
+  /** ring buffer for the continuous sampling, null if the thread is not sampled continuously */
+  std::atomic<SampleRingBuffer*> sampleBuffer = {nullptr};
+  /** triggers the continuous sampling of this thread if it uses the CPU timer trigger */
+  ThreadCpuTimer cpuTimer;
+  /** triggers the continuous sampling of this thread if it uses a perf event trigger */
+  ThreadPerfEvent perfEvent;
+  /** is this one of the walker threads, which are never walked themselves */
+  bool isWalker = false;
+  /** global reference to the Java thread, null if not registered */
+  jthread javaThread = nullptr;
+  /** position in the live threads of the ThreadStateIndex, -1 if not contained */
+  long liveIndex = -1;
+  /** CPU time of the thread at the previous on-CPU selection, see ThreadStateIndex::selectOnCpuThreadRefs */
+  long lastSelectionCpuTime = 0;
+  /** walk requests for this thread that are signalled but not yet claimed by its signal handler */
+  std::atomic<int32_t> pendingWalkRequests = {0};
+  /**
+   * Java id of the virtual thread that is mounted on this (carrier) thread, -1 if none is mounted
+   * or the virtual threads are not tracked, see Tracer.setVirtualThreadSupport
+   */
+  std::atomic<javaThreadId_t> mountedVirtualThreadId = {-1};
+
+  ThreadState(pthread_t thread, JNIEnv *env, javaThreadId_t javaThreadId = -1, long osThreadId = -1) :
+    thread(thread), env(env), javaThreadId(javaThreadId), osThreadId(osThreadId) {}
 };
 
-jlong obtainJavaThreadIdViaJava(JNIEnv *env, jthread thread) {
-  if (env == nullptr) {
-    return -1;
+/** key to obtain the state of the current thread, also in signal handlers */
+static pthread_key_t threadStateKey;
+
+/** returns the state of the current thread, or a fallback state if the thread has not been registered */
+ThreadState* getCurrentThreadState(JNIEnv *env) {
+  ThreadState *state = (ThreadState*)pthread_getspecific(threadStateKey);
+  if (state != nullptr) {
+    return state;
   }
-  jclass threadClass = env->FindClass("java/lang/Thread");
-  jmethodID getId = env->GetMethodID(threadClass, "getId", "()J");
-  jlong id = env->CallLongMethod(thread, getId);
-  return id;
-}
-
-/** returns the jthread for a given Java thread id or null */
-jthread getJThreadForPThread(JNIEnv *env, pthread_t threadId) {
-  std::vector<jthread> threadVec;
-  JvmtiDeallocator<jthread *> threads;
-  jint thread_count = 0;
-  jvmti->GetAllThreads(&thread_count, threads.get_addr());
-  for (int i = 0; i < thread_count; i++) {
-    jthread thread = threads.get()[i];
-    ThreadState *state;
-    jvmti->GetThreadLocalStorage(thread, (void **)&state);
-    if (state == nullptr) {
-      continue;
+  static thread_local ThreadState unregisteredState(pthread_self(), env);
+  return &unregisteredState;
+}
+
+/**
+ * States of the registered threads by Java thread id, maintained by OnThreadStart and OnThreadEnd,
+ * so that threads can be resolved without scanning all threads.
+ * Also the registry of the live threads that can be walked (all but the walker threads) for Tracer.getThreads.
+ */
+class ThreadStateIndex {
+  std::mutex mutex;
+  std::unordered_map<javaThreadId_t, ThreadState*> states;
+  // the live non walker threads, in no particular order
+  std::vector<ThreadState*> liveThreads;
+  // the mounted virtual threads by Java thread id, with their carrier and a global reference
+  std::unordered_map<javaThreadId_t, std::pair<ThreadState*, jthread>> mountedVirtualThreads;
+  std::minstd_rand random;
+
+  void swapLive(size_t i, size_t j) {
+    std::swap(liveThreads[i], liveThreads[j]);
+    liveThreads[i]->liveIndex = i;
+    liveThreads[j]->liveIndex = j;
+  }
+
+public:
+
+  void add(ThreadState *state) {
+    std::lock_guard<std::mutex> lock(mutex);
+    states[state->javaThreadId] = state;
+    if (!state->isWalker) {
+      state->liveIndex = liveThreads.size();
+      liveThreads.push_back(state);
+    }
+  }
+
+  void remove(ThreadState *state) {
+    std::lock_guard<std::mutex> lock(mutex);
+    auto it = states.find(state->javaThreadId);
+    if (it != states.end() && it->second == state) {
+      states.erase(it);
     }
-    if (state->thread == threadId) {
-      return thread;
+    if (state->liveIndex != -1) {
+      swapLive(state->liveIndex, liveThreads.size() - 1);
+      liveThreads.pop_back();
+      state->liveIndex = -1;
     }
   }
-  return nullptr;
-}
 
-bool hasThreadState(jthread thread) {
-  ThreadState *state;
-  jvmti->GetThreadLocalStorage(thread, (void **)&state);
-  return state != nullptr;
+  /** returns the state or null if the thread is not registered (anymore) */
+  ThreadState* get(javaThreadId_t javaThreadId) {
+    std::lock_guard<std::mutex> lock(mutex);
+    auto it = states.find(javaThreadId);
+    return it == states.end() ? nullptr : it->second;
+  }
+
+  /** records that the virtual thread is mounted on the carrier, takes ownership of the global reference */
+  void mount(javaThreadId_t virtualThreadId, ThreadState *carrier, jthread globalRef) {
+    std::lock_guard<std::mutex> lock(mutex);
+    carrier->mountedVirtualThreadId = virtualThreadId;
+    mountedVirtualThreads[virtualThreadId] = {carrier, globalRef};
+  }
+
+  /** returns the global reference of the unmounted virtual thread (to be deleted by the caller) or null */
+  jthread unmount(javaThreadId_t virtualThreadId, ThreadState *carrier) {
+    std::lock_guard<std::mutex> lock(mutex);
+    carrier->mountedVirtualThreadId = -1;
+    auto it = mountedVirtualThreads.find(virtualThreadId);
+    if (it == mountedVirtualThreads.end()) {
+      return nullptr;
+    }
+    jthread globalRef = it->second.second;
+    mountedVirtualThreads.erase(it);
+    return globalRef;
+  }
+
+  /** forget all mounted virtual threads, returns their global references (to be deleted by the caller) */
+  std::vector<jthread> unmountAll() {
+    std::lock_guard<std::mutex> lock(mutex);
+    std::vector<jthread> refs;
+    for (auto &entry : mountedVirtualThreads) {
+      entry.second.first->mountedVirtualThreadId = -1;
+      refs.push_back(entry.second.second);
+    }
+    mountedVirtualThreads.clear();
+    return refs;
+  }
+
+  /** returns the carrier of the mounted virtual thread or null if it is not mounted */
+  ThreadState* getCarrier(javaThreadId_t virtualThreadId) {
+    std::lock_guard<std::mutex> lock(mutex);
+    auto it = mountedVirtualThreads.find(virtualThreadId);
+    return it == mountedVirtualThreads.end() ? nullptr : it->second.first;
+  }
+
+  /** local references to all mounted virtual threads */
+  std::vector<jthread> mountedVirtualThreadRefs(JNIEnv *env) {
+    std::lock_guard<std::mutex> lock(mutex);
+    std::vector<jthread> refs;
+    refs.reserve(mountedVirtualThreads.size());
+    for (auto &entry : mountedVirtualThreads) {
+      refs.push_back(env->NewLocalRef(entry.second.second));
+    }
+    return refs;
+  }
+
+  /** calls the function for all registered threads, which must not register or unregister threads */
+  template <typename F> void forEach(F function) {
+    std::lock_guard<std::mutex> lock(mutex);
+    for (auto &entry : states) {
+      function(entry.second);
+    }
+  }
+
+  /** local references to all live non walker threads */
+  std::vector<jthread> liveThreadRefs(JNIEnv *env) {
+    std::lock_guard<std::mutex> lock(mutex);
+    std::vector<jthread> refs;
+    refs.reserve(liveThreads.size());
+    for (ThreadState *state : liveThreads) {
+      refs.push_back(env->NewLocalRef(state->javaThread));
+    }
+    return refs;
+  }
+
+  /**
+   * local references to up to maxThreads randomly selected live non walker threads,
+   * a partial shuffle, so it only costs O(maxThreads)
+   */
+  std::vector<jthread> selectLiveThreadRefs(JNIEnv *env, size_t maxThreads, javaThreadId_t excluded) {
+    std::lock_guard<std::mutex> lock(mutex);
+    std::vector<jthread> refs;
+    for (size_t i = 0; i < liveThreads.size() && refs.size() < maxThreads; i++) {
+      swapLive(i, i + random() % (liveThreads.size() - i));
+      if (liveThreads[i]->javaThreadId != excluded) {
+        refs.push_back(env->NewLocalRef(liveThreads[i]->javaThread));
+      }
+    }
+    return refs;
+  }
+
+  /**
+   * like selectLiveThreadRefs, but only selects threads that consumed CPU time since the previous call,
+   * weighted by the consumed CPU time (weighted random sampling without replacement by Efraimidis and Spirakis)
+   */
+  std::vector<jthread> selectOnCpuThreadRefs(JNIEnv *env, size_t maxThreads, javaThreadId_t excluded) {
+    std::lock_guard<std::mutex> lock(mutex);
+    std::uniform_real_distribution<double> uniform(0, 1);
+    std::vector<std::pair<double, ThreadState*>> candidates;
+    for (ThreadState *state : liveThreads) {
+      long cpuTime = threadCpuTimeNanos(state->thread);
+      if (cpuTime == -1) {
+        continue;
+      }
+      long delta = cpuTime - state->lastSelectionCpuTime;
+      state->lastSelectionCpuTime = cpuTime;
+      if (delta > 0 && state->javaThreadId != excluded) {
+        // the threads with the largest keys are selected
+        candidates.push_back({std::log(1 - uniform(random)) / delta, state});
+      }
+    }
+    size_t count = std::min(maxThreads, candidates.size());
+    std::partial_sort(candidates.begin(), candidates.begin() + count, candidates.end(),
+      [](const std::pair<double, ThreadState*> &a, const std::pair<double, ThreadState*> &b) {
+        return a.first > b.first;
+      });
+    std::vector<jthread> refs;
+    for (size_t i = 0; i < count; i++) {
+      refs.push_back(env->NewLocalRef(candidates[i].second->javaThread));
+    }
+    return refs;
+  }
+};
+
+static ThreadStateIndex threadStateIndex;
+
+static jclass javaThreadClass = nullptr;
+static jmethodID javaThreadGetIdMethod = nullptr;
+
+jlong obtainJavaThreadIdViaJava(JNIEnv *env, jthread thread) {
+  if (env == nullptr) {
+    return -1;
+  }
+  jclass threadClass = findClass(env, javaThreadClass, "java/lang/Thread");
+  jmethodID getId = findMethod(env, javaThreadGetIdMethod, threadClass, "getId", "()J");
+  return env->CallLongMethod(thread, getId);
 }
 
 /**
- * @brief Obtains the pthread_t for a given jthread and returns the current if this fails or the given thread is null.
+ * @brief Obtains the state for a given jthread, or the state of the current thread if the given thread is null.
+ * Returns the state of the carrier for mounted virtual threads, and null for unknown threads and virtual threads
+ * that are not mounted.
  *
  * @param thread optional thread
+ * @param virtualThreadId optional, set to the id of the virtual thread if the carrier is returned, -1 otherwise
  */
-ThreadState getStateForJThread(JNIEnv* env, jthread thread) {
+ThreadState* getStateForJThread(JNIEnv* env, jthread thread, javaThreadId_t *virtualThreadId = nullptr) {
+  if (virtualThreadId != nullptr) {
+    *virtualThreadId = -1;
+  }
   if (thread == nullptr) {
-    return {pthread_self(), env};
+    return getCurrentThreadState(env);
   }
-  ThreadState *state;
+  ThreadState *state = nullptr;
   jvmti->GetThreadLocalStorage(thread, (void **)&state);
   if (state == nullptr) {
-    jvmtiThreadInfo info;
-    jvmti->GetThreadInfo(thread, &info);
-    fprintf(stderr, "Thread %s has no state\n", info.name);
-    return {pthread_self(), env};
+    // fall back to the index, e.g. if the JVMTI thread local storage could not be set
+    javaThreadId_t javaThreadId = obtainJavaThreadIdViaJava(env, thread);
+    state = threadStateIndex.get(javaThreadId);
+    if (state == nullptr) {
+      // virtual threads are walked on their carrier, while they are mounted
+      state = threadStateIndex.getCarrier(javaThreadId);
+      if (state != nullptr && virtualThreadId != nullptr) {
+        *virtualThreadId = javaThreadId;
+      }
+    }
   }
-  return *state;
+  return state;
 }
 
 std::atomic<bool> shouldStop;
 
-static void loop();
+static void loop(size_t index);
 
-std::thread samplerThread;
+static void wakeUpWalkers();
+
+/** default number of walker threads, see Tracer.setWalkerThreadCount */
+const size_t DEFAULT_WALKER_THREADS = 4;
+
+/**
+ * Threads that walk the stacks of the signalled threads for the separate thread modes,
+ * each waiting target is handed to a free walker
+ */
+class WalkerPool {
+  // guards the resizing
+  std::mutex mutex;
+  std::vector<std::thread> threads;
+  std::atomic<size_t> targetSize = {0};
+
+public:
+
+  /** start or stop walkers, waits till the stopped walkers finished their current walk */
+  void resize(size_t size) {
+    std::lock_guard<std::mutex> lock(mutex);
+    targetSize = size;
+    if (size < threads.size()) {
+      wakeUpWalkers();
+      for (size_t i = size; i < threads.size(); i++) {
+        threads[i].join();
+      }
+      threads.erase(threads.begin() + size, threads.end());
+    }
+    while (threads.size() < size) {
+      threads.emplace_back(loop, threads.size());
+    }
+  }
+
+  size_t size() {
+    return targetSize;
+  }
+
+  /** should the walker with the given index continue */
+  bool isRunning(size_t index) {
+    return !shouldStop && index < targetSize;
+  }
+};
+
+static WalkerPool walkerPool;
 
 void onAbort() {
   shouldStop = true;
-  if (samplerThread.joinable()) {
-    samplerThread.join();
-  }
+  walkerPool.resize(0);
 }
 
 bool primedClasses = false;
 
 void primeClasses();
 
-void registerThread(JNIEnv *jni_env, jthread thread) {
+/** set by the walkers before they attach, so that the thread start event registers them as walkers */
+static thread_local bool isAttachingWalker = false;
+
+void registerThread(JNIEnv *jni_env, jthread thread, bool isWalker = false) {
   if (!primedClasses) {
     primedClasses = true;
     primeClasses();
   }
-  threadIdMap.addThread(get_thread_id(),
-                        obtainJavaThreadIdViaJava(jni_env, thread));
-
-  jvmti->SetThreadLocalStorage(
-      thread, new ThreadState({pthread_self(), jni_env}));
+  javaThreadId_t javaThreadId = obtainJavaThreadIdViaJava(jni_env, thread);
+  long osThreadId = get_thread_id();
+  threadIdMap.addThread(osThreadId, javaThreadId);
+
+  ThreadState *state = new ThreadState(pthread_self(), jni_env, javaThreadId, osThreadId);
+  state->isWalker = isWalker || isAttachingWalker;
+  state->javaThread = jni_env->NewGlobalRef(thread);
+  jvmti->SetThreadLocalStorage(thread, state);
+  pthread_setspecific(threadStateKey, state);
+  threadStateIndex.add(state);
 }
 
+static void onContinuousThreadStart(ThreadState *state);
+
+static void onContinuousThreadEnd(ThreadState *state);
+
 void OnThreadStart(jvmtiEnv *jvmti_env, JNIEnv *jni_env, jthread thread) {
   registerThread(jni_env, thread);
+  onContinuousThreadStart(getCurrentThreadState(jni_env));
 }
 
 void OnThreadEnd(jvmtiEnv *jvmti_env, JNIEnv *jni_env, jthread thread) {
   threadIdMap.removeThread(get_thread_id());
+  ThreadState *state = (ThreadState*)pthread_getspecific(threadStateKey);
+  if (state != nullptr) {
+    threadStateIndex.remove(state);
+    onContinuousThreadEnd(state);
+    jni_env->DeleteGlobalRef(state->javaThread);
+    state->javaThread = nullptr;
+  }
 }
 
 // AsyncGetCallTrace needs class loading events to be turned on!
@@ -184,6 +451,146 @@ static void JNICALL OnClassPrepare(jvmtiEnv *jvmti, JNIEnv *jni_env,
   GetJMethodIDs(klass);
 }
 
+static void JNICALL OnClassUnload(jvmtiEnv *jvmti_env, ...) {
+  methodIdCache.onClassUnload();
+}
+
+/** HotSpot only reports class unloading via an extension event, invalidates the MethodId cache */
+static void enableClassUnloadEvents() {
+  jint count = 0;
+  jvmtiExtensionEventInfo *events = nullptr;
+  if (jvmti->GetExtensionEvents(&count, &events) != JVMTI_ERROR_NONE) {
+    return;
+  }
+  for (int i = 0; i < count; i++) {
+    if (strcmp(events[i].id, "com.sun.hotspot.events.ClassUnload") == 0 &&
+        jvmti->SetExtensionEventCallback(events[i].extension_event_index,
+          (jvmtiExtensionEvent)OnClassUnload) == JVMTI_ERROR_NONE) {
+      methodIdCache.setUnloadEventsAvailable();
+    }
+  }
+  jvmti->Deallocate((unsigned char*)events);
+}
+
+/** are mounted virtual threads tracked, see Tracer.setVirtualThreadSupport */
+static std::atomic<bool> virtualThreadTracking = {false};
+
+static jclass javaThreadTidClass = nullptr;
+static jfieldID javaThreadTidField = nullptr;
+
+/** Java id of a virtual thread, reads the field directly, as the mount events should not call Java code */
+javaThreadId_t obtainVirtualThreadId(JNIEnv *env, jthread thread) {
+  if (javaThreadTidField == nullptr) {
+    jclass threadClass = findClass(env, javaThreadTidClass, "java/lang/Thread");
+    javaThreadTidField = env->GetFieldID(threadClass, "tid", "J");
+    if (javaThreadTidField == nullptr) {
+      env->ExceptionClear();
+      return obtainJavaThreadIdViaJava(env, thread);
+    }
+  }
+  return env->GetLongField(thread, javaThreadTidField);
+}
+
+/** posted on the carrier after the virtual thread is mounted, also used for the virtual thread start */
+static void JNICALL OnVirtualThreadMount(jvmtiEnv *jvmti_env, JNIEnv *jni_env, jthread vthread) {
+  ThreadState *carrier = (ThreadState*)pthread_getspecific(threadStateKey);
+  if (!virtualThreadTracking || carrier == nullptr || carrier->isWalker) {
+    return;
+  }
+  threadStateIndex.mount(obtainVirtualThreadId(jni_env, vthread), carrier, jni_env->NewGlobalRef(vthread));
+}
+
+/** posted on the carrier before the virtual thread is unmounted, also used for the virtual thread end */
+static void JNICALL OnVirtualThreadUnmount(jvmtiEnv *jvmti_env, JNIEnv *jni_env, jthread vthread) {
+  ThreadState *carrier = (ThreadState*)pthread_getspecific(threadStateKey);
+  if (carrier == nullptr || carrier->mountedVirtualThreadId == -1) {
+    return;
+  }
+  jthread globalRef = threadStateIndex.unmount(obtainVirtualThreadId(jni_env, vthread), carrier);
+  if (globalRef != nullptr) {
+    jni_env->DeleteGlobalRef(globalRef);
+  }
+}
+
+// the virtual thread support is only declared in the headers of JDK 21 and newer,
+// so the tester can still be compiled against older JDKs (and then has no virtual thread support)
+
+template <typename C> auto setVirtualThreadCapability(C &caps, int) -> decltype(caps.can_support_virtual_threads = 1, bool()) {
+  caps.can_support_virtual_threads = 1;
+  return true;
+}
+
+template <typename C> bool setVirtualThreadCapability(C &, long) {
+  return false;
+}
+
+template <typename C> auto setVirtualThreadCallbacks(C &callbacks, int) -> decltype(callbacks.VirtualThreadStart = nullptr, bool()) {
+  callbacks.VirtualThreadStart = &OnVirtualThreadMount;
+  callbacks.VirtualThreadEnd = &OnVirtualThreadUnmount;
+  return true;
+}
+
+template <typename C> bool setVirtualThreadCallbacks(C &, long) {
+  return false;
+}
+
+/** JVMTI_EVENT_VIRTUAL_THREAD_START and _END, only defined in the headers of JDK 21 and newer */
+const int VIRTUAL_THREAD_START_EVENT = 87;
+const int VIRTUAL_THREAD_END_EVENT = 88;
+
+/** have the capability and the start and end callbacks been set in Agent_Initialize */
+static bool virtualThreadEventsAvailable = false;
+
+/**
+ * HotSpot only reports the mounting and unmounting via extension events, which are enabled
+ * by setting their callbacks (null disables them), returns true if both events are available
+ */
+static bool setVirtualThreadMountCallbacks(bool enable) {
+  jint count = 0;
+  jvmtiExtensionEventInfo *events = nullptr;
+  if (jvmti->GetExtensionEvents(&count, &events) != JVMTI_ERROR_NONE) {
+    return false;
+  }
+  int found = 0;
+  for (int i = 0; i < count; i++) {
+    jvmtiExtensionEvent callback = nullptr;
+    if (strcmp(events[i].id, "com.sun.hotspot.events.VirtualThreadMount") == 0) {
+      callback = (jvmtiExtensionEvent)OnVirtualThreadMount;
+    } else if (strcmp(events[i].id, "com.sun.hotspot.events.VirtualThreadUnmount") == 0) {
+      callback = (jvmtiExtensionEvent)OnVirtualThreadUnmount;
+    } else {
+      continue;
+    }
+    if (jvmti->SetExtensionEventCallback(events[i].extension_event_index, enable ? callback : nullptr) ==
+        JVMTI_ERROR_NONE) {
+      found++;
+    }
+  }
+  jvmti->Deallocate((unsigned char*)events);
+  return found == 2;
+}
+
+/** start or stop tracking the mounted virtual threads, returns false if this is not supported */
+static bool setVirtualThreadTracking(JNIEnv *env, bool enable) {
+  if (!virtualThreadEventsAvailable) {
+    return false;
+  }
+  jvmtiEventMode mode = enable ? JVMTI_ENABLE : JVMTI_DISABLE;
+  if (!setVirtualThreadMountCallbacks(enable) ||
+      jvmti->SetEventNotificationMode(mode, (jvmtiEvent)VIRTUAL_THREAD_START_EVENT, nullptr) != JVMTI_ERROR_NONE ||
+      jvmti->SetEventNotificationMode(mode, (jvmtiEvent)VIRTUAL_THREAD_END_EVENT, nullptr) != JVMTI_ERROR_NONE) {
+    enable = false;
+    setVirtualThreadMountCallbacks(false);
+  }
+  virtualThreadTracking = enable;
+  if (!enable) {
+    for (jthread ref : threadStateIndex.unmountAll()) {
+      env->DeleteGlobalRef(ref);
+    }
+  }
+  return enable;
+}
+
 static void startSamplerThread();
 
 void primeClasses() {
@@ -218,7 +625,7 @@ static void JNICALL OnVMInit(jvmtiEnv *_jvmti, JNIEnv *jni_env, jthread thread)
 static void signalHandler(int signum, siginfo_t *info, void *ucontext);
 
 static void startSamplerThread() {
-  samplerThread = std::thread(loop);
+  walkerPool.resize(std::min((size_t)std::max(std::thread::hardware_concurrency(), 1u), DEFAULT_WALKER_THREADS));
   installSignalHandler(SIGPROF, signalHandler);
 }
 
@@ -245,6 +652,12 @@ static jint Agent_Initialize(JavaVM *_jvm, char *options, void *reserved) {
 
   ensureSuccess(jvmti->AddCapabilities(&caps), "AddCapabilities");
 
+  // optional, as it is not available in the live phase of all JDKs
+  jvmtiCapabilities virtualThreadCaps;
+  memset(&virtualThreadCaps, 0, sizeof(virtualThreadCaps));
+  bool virtualThreadCapability = setVirtualThreadCapability(virtualThreadCaps, 0) &&
+    jvmti->AddCapabilities(&virtualThreadCaps) == JVMTI_ERROR_NONE;
+
   jvmtiEventCallbacks callbacks;
   memset(&callbacks, 0, sizeof(callbacks));
   callbacks.ClassLoad = &OnClassLoad;
@@ -253,6 +666,7 @@ static jint Agent_Initialize(JavaVM *_jvm, char *options, void *reserved) {
   callbacks.VMDeath = &OnVMDeath;
   callbacks.ThreadStart = &OnThreadStart;
   callbacks.ThreadEnd = &OnThreadEnd;
+  virtualThreadEventsAvailable = virtualThreadCapability && setVirtualThreadCallbacks(callbacks, 0);
   ensureSuccess(
       jvmti->SetEventCallbacks(&callbacks, sizeof(jvmtiEventCallbacks)),
       "SetEventCallbacks");
@@ -274,6 +688,8 @@ static jint Agent_Initialize(JavaVM *_jvm, char *options, void *reserved) {
   ensureSuccess(jvmti->SetEventNotificationMode(
                     JVMTI_ENABLE, JVMTI_EVENT_THREAD_END, nullptr),
                 "thread end");
+  pthread_key_create(&threadStateKey, nullptr);
+  enableClassUnloadEvents();
   initASGCT();
   startSamplerThread();
   return JNI_OK;
@@ -291,29 +707,45 @@ jint JNICALL Agent_OnAttach(JavaVM *jvm, char *options, void *reserved) {
 }
 
 
+/** value of the signals sent for walk requests, the continuous sampling sends 0 */
+const int WALK_REQUEST_SIGNAL = 1;
+
 /** returns true if successful */
-bool sendSignal(pthread_t thread) {
+bool sendSignal(pthread_t thread, int value = 0) {
 #if defined(__APPLE__) && defined(__MACH__)
   return pthread_kill(thread, SIGPROF) == 0;
 #else
   union sigval sigval;
+  sigval.sival_int = value;
   return sigqueue(thread, SIGPROF, sigval) == 0;
 #endif
 }
 
-bool sendSignal(JNIEnv *env, jthread thread) {
-  return sendSignal(getStateForJThread(env, thread).thread);
+/** was the signal sent for a walk request, assumes so if the signal carries no value */
+static bool isWalkRequestSignal(siginfo_t *info) {
+#if defined(__APPLE__) && defined(__MACH__)
+  return true;
+#else
+  return info->si_code == SI_QUEUE && info->si_value.sival_int == WALK_REQUEST_SIGNAL;
+#endif
 }
 
-/** idle wait till the atomic variable is as expected or the timeout is reached,
- * returns the value of the atomic variable */
-bool waitOnAtomic(std::atomic<bool> &atomic, bool expected = true,
-                  int timeout = 100) {
-  auto start = std::chrono::system_clock::now();
-  while (atomic.load() != expected && std::chrono::system_clock::now() - start <
-                                          std::chrono::milliseconds(timeout)) {
-  }
-  return atomic;
+/** counts the walks and samples that were dropped, see Tracer.getDroppedSamples */
+struct DropCounters {
+  /** the signal for a walk request could not be sent */
+  std::atomic<uint64_t> signalFailed = {0};
+  /** the signal handler didn't claim a walk request in time, e.g. because the thread ended */
+  std::atomic<uint64_t> timedOut = {0};
+};
+
+static DropCounters dropCounters;
+
+/** how long a requester waits for the signal handler to claim its request, see Tracer.setWalkRequestTimeout */
+static std::atomic<long> walkRequestTimeoutNanos = {1000000000};
+
+bool sendSignal(JNIEnv *env, jthread thread) {
+  ThreadState *state = getStateForJThread(env, thread);
+  return state != nullptr && sendSignal(state->thread);
 }
 
 bool checkJThread(jthread javaThread) {
@@ -338,7 +770,7 @@ JNIEXPORT jobject JNICALL Java_tester_Tracer_runGST
   if (thread == nullptr) {
     jvmti->GetCurrentThread(&thread);
   }
-  jvmtiFrameInfo gstFrames[MAX_DEPTH];
+  jvmtiFrameInfo *gstFrames = threadLocalFrames<jvmtiFrameInfo>(std::max(depth, 0));
   jint gstCount = 0;
   jvmtiError err = jvmti->GetStackTrace(thread, 0, depth, gstFrames, &gstCount);
   if (err != JVMTI_ERROR_NONE) {
@@ -349,6 +781,47 @@ JNIEXPORT jobject JNICALL Java_tester_Tracer_runGST
   return createTraceWithoutTracerFrames(env, (jvmtiFrameInfo*)gstFrames + app, gstCount - app);
 }
 
+/*
+ * Class:     tester_Tracer
+ * Method:    runGSTForThreads
+ * Signature: ([Ljava/lang/Thread;I)[Ltester/Trace;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_runGSTForThreads
+  (JNIEnv *env, jclass, jobjectArray threads, jint depth) {
+  jint count = env->GetArrayLength(threads);
+  // frees the thread references, the stack info threads and the traces on every return path
+  if (env->PushLocalFrame(3 * count + 16) != JNI_OK) {
+    return nullptr; // OutOfMemoryError is pending
+  }
+  jobjectArray result = env->NewObjectArray(count, findClass(env, javaTraceClass, "tester/Trace"), nullptr);
+  if (count == 0) {
+    return (jobjectArray)env->PopLocalFrame(result);
+  }
+  std::vector<jthread> threadList(count);
+  for (jint i = 0; i < count; i++) {
+    threadList[i] = (jthread)env->GetObjectArrayElement(threads, i);
+  }
+  // walks all threads at a single safe-point
+  jvmtiStackInfo *stackInfos = nullptr;
+  jvmtiError err = jvmti->GetThreadListStackTraces(count, threadList.data(), std::max(depth, 0), &stackInfos);
+  if (err != JVMTI_ERROR_NONE) {
+    fprintf(stderr, "Error: GetThreadListStackTraces failed with error %d\n", err);
+    return (jobjectArray)env->PopLocalFrame(result);
+  }
+  for (jint i = 0; i < count; i++) {
+    jvmtiStackInfo *info = &stackInfos[i];
+    if ((info->state & JVMTI_THREAD_STATE_ALIVE) == 0) {
+      continue; // not started or already terminated
+    }
+    int app = countFirstTracerFrames(info->frame_buffer, info->frame_count);
+    env->SetObjectArrayElement(result, i,
+      createTraceWithoutTracerFrames(env, info->frame_buffer + app, info->frame_count - app));
+  }
+  // the frame buffers are part of the same allocation
+  jvmti->Deallocate((unsigned char*)stackInfos);
+  return (jobjectArray)env->PopLocalFrame(result);
+}
+
 /*
  * Class:     tester_Tracer
  * Method:    runASGCT
@@ -356,9 +829,8 @@ JNIEXPORT jobject JNICALL Java_tester_Tracer_runGST
  */
 JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGCT
   (JNIEnv *env, jclass, jint depth) {
-  ASGCT_CallFrame frames[MAX_DEPTH];
   ASGCT_CallTrace trace;
-  trace.frames = frames;
+  trace.frames = threadLocalFrames<ASGCT_CallFrame>(std::max(depth, 0));
   trace.env_id = env;
   trace.num_frames = depth;
   ucontext_t context;
@@ -377,11 +849,10 @@ JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGCT
  */
 JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGST
   (JNIEnv *env, jclass, jint options, jint depth) {
-  ASGST_CallFrame frames[MAX_DEPTH];
   ASGST_CallTrace trace;
   trace.kind = 0;
   trace.state = 0;
-  trace.frames = frames;
+  trace.frames = threadLocalFrames<ASGST_CallFrame>(std::max(depth, 0));
   ucontext_t context;
   getcontext(&context);
   AsyncGetStackTrace(&trace, depth, &context, options);
@@ -391,24 +862,6 @@ JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGST
   return createTraceWithoutTracerFrames(env, &trace);
 }
 
-long nanotime() {
-  struct timespec ts;
-  clock_gettime(CLOCK_MONOTONIC, &ts);
-  return ts.tv_sec * 1000000000 + ts.tv_nsec;
-}
-
-/** waits as long as condition holds with a timeout, returns false if timeout is hit*/
-bool waitWhile(std::function<bool()> condition, long timeout_ns = -1) {
-    long start = nanotime();
-    while (condition()) {
-        long diff = nanotime() - start;
-        if (timeout_ns != -1 && diff > timeout_ns) {
-            return false;
-        }
-    }
-    return true;
-}
-
 enum class WalkMode { sameThread, separateThread, asgctSameThread, multiple, multipleSig, multipleSep };
 
 /** options for the more complex multiple mode */
@@ -431,28 +884,34 @@ struct MultipleOptions {
 
 struct MultipleTraces {
   MultipleOptions *options;
-  ASGCT_CallFrame asgctSigFrames[MAX_DEPTH];
+  FrameBuffer<ASGCT_CallFrame> asgctSigFrames;
   ASGCT_CallTrace asgctSigTrace;
-  std::vector<std::array<ASGST_CallFrame, MAX_DEPTH>> asgstSepThreadFramess;
+  // buffers are only added, never removed, so that they can be reused by later walks
+  std::vector<FrameBuffer<ASGST_CallFrame>> asgstSepThreadFramess;
   std::vector<ASGST_CallTrace> asgstSepThreadTraces;
-  std::vector<std::array<ASGST_CallFrame, MAX_DEPTH>> asgstSigFramess;
+  std::vector<FrameBuffer<ASGST_CallFrame>> asgstSigFramess;
   std::vector<ASGST_CallTrace> asgstSigTraces;
 
-  void init(JNIEnv *threadEnv, MultipleOptions *options) {
+  /** prepares the traces for walks with the given depth, only allocates if deeper or more traces are needed */
+  void init(JNIEnv *threadEnv, MultipleOptions *options, jint depth) {
     this->options = options;
-    asgctSigTrace.frames = asgctSigFrames;
+    size_t frameCount = std::max(depth, 0);
+    asgctSigTrace.frames = options->asgctSig ? asgctSigFrames.ensure(frameCount) : asgctSigFrames.get();
     asgctSigTrace.num_frames = 0;
     asgctSigTrace.env_id = threadEnv;
-    allocate(asgstSepThreadFramess, asgstSepThreadTraces, options->asgstSepThreadOptions.size());
-    allocate(asgstSigFramess, asgstSigTraces, options->asgstSigOptions.size());
+    allocate(asgstSepThreadFramess, asgstSepThreadTraces, options->asgstSepThreadOptions.size(), frameCount);
+    allocate(asgstSigFramess, asgstSigTraces, options->asgstSigOptions.size(), frameCount);
   }
 
 private:
-  void allocate(std::vector<std::array<ASGST_CallFrame, MAX_DEPTH>> &framess, std::vector<ASGST_CallTrace> &traces, size_t count) {
-    framess.resize(count);
+  void allocate(std::vector<FrameBuffer<ASGST_CallFrame>> &framess, std::vector<ASGST_CallTrace> &traces,
+      size_t count, size_t frameCount) {
+    while (framess.size() < count) {
+      framess.emplace_back();
+    }
     traces.resize(count);
     for (size_t i = 0; i < count; i++) {
-      traces[i].frames = framess[i].data();
+      traces[i].frames = framess[i].ensure(frameCount);
       traces[i].num_frames = 0;
       traces[i].kind = 0;
       traces[i].state = 0;
@@ -467,6 +926,23 @@ private:
 
 public:
 
+  /**
+   * adds views on the traces in the passed order, the indexes are the indexes in the array of toTraceArray
+   */
+  void addComparableTraces(const std::vector<int> &order, jint depth, std::vector<ComparableTrace> &dest) {
+    size_t sepCount = asgstSepThreadTraces.size();
+    for (int index : order) {
+      if (index == 0) {
+        dest.emplace_back(&asgctSigTrace, depth);
+      } else if ((size_t)index <= sepCount) {
+        dest.emplace_back(&asgstSepThreadTraces[index - 1], options->asgstSepThreadOptions[index - 1], depth);
+      } else {
+        size_t sigIndex = index - 1 - sepCount;
+        dest.emplace_back(&asgstSigTraces[sigIndex], options->asgstSigOptions[sigIndex], depth);
+      }
+    }
+  }
+
   jobjectArray toTraceArray(JNIEnv *env) {
     jclass traceClass = env->FindClass("tester/Trace");
     jobjectArray array = env->NewObjectArray(1 + asgstSepThreadTraces.size() + asgstSigTraces.size(), traceClass, nullptr);
@@ -485,161 +961,676 @@ struct WalkSettings {
   jint depth;
   // only valid in non-multiple mode
   jint options;
-  pthread_t thread;
+  // the thread to walk
+  ThreadState *target;
+  // the virtual thread that has to be mounted on the target when it is walked, -1 for platform threads
+  javaThreadId_t virtualThreadId = -1;
+};
+
+/**
+ * Life cycle of a walk request:
+ * free -> preparing (requester) -> signalled (requester) -> inHandler (signal handler)
+ * -> [waitingForWalker (signal handler) -> walking (walker) -> walked (walker)] -> finished (signal handler)
+ * -> free (requester)
+ */
+enum class WalkState : int32_t { free, preparing, signalled, inHandler, waitingForWalker, walking, walked, finished };
+
+/** the state of a single walk, every JNI call obtains its own */
+struct WalkRequest {
+  WaitableAtomic<WalkState> state = {WalkState::free};
+  WalkSettings settings;
+  // ucontext of the signal handler, only valid while waiting for or being processed by the walker
+  void* ucontext;
+  // reused by the walks of this request, grown by the requester if needed
+  FrameBuffer<ASGST_CallFrame> frames;
+  ASGST_CallTrace trace;
+  FrameBuffer<ASGCT_CallFrame> asgctFrames;
+  ASGCT_CallTrace asgctTrace;
+  // for multiple mode
+  MultipleOptions multipleOptions;
+  MultipleTraces multipleTraces;
+  // nanotime when the signal was sent
+  long signalledAt = 0;
+  // timestamp for the sampler stats, 0 if the stats are disabled
+  long enqueuedAt = 0;
+  // captured by the signal handler, the timestamp is 0 if the thread has not been walked in a signal handler
+  SampleTime sampleTime = {0, -1, -1};
+  // set by the signal handler if the expected virtual thread was not mounted anymore, nothing has been walked
+  bool unmounted = false;
+};
+
+/** maximum number of walk requests that can be in flight at the same time */
+const int MAX_WALK_REQUESTS = 64;
+
+/**
+ * Lock-free pool of walk requests, it also serves as the queue for the signal handlers and the walker thread,
+ * which claim requests by their state
+ */
+class WalkRequestPool {
+  std::array<WalkRequest, MAX_WALK_REQUESTS> requests;
+  // incremented whenever a request is released
+  WaitableAtomic<int32_t> releases;
+  // incremented whenever a request starts waiting for a walker
+  WaitableAtomic<int32_t> walkerWakeups;
+
+  /** claim the first request that is in the expected state (and matches the predicate) */
+  template <typename P> WalkRequest* claim(WalkState expected, WalkState desired, size_t start, P predicate) {
+    for (size_t i = 0; i < requests.size(); i++) {
+      WalkRequest &request = requests[(start + i) % requests.size()];
+      WalkState current = expected;
+      if (request.state.load(std::memory_order_relaxed) == expected && predicate(request) &&
+          request.state.compare_exchange_strong(current, desired)) {
+        return &request;
+      }
+    }
+    return nullptr;
+  }
+
+public:
+  /** obtain a free request, waits if all requests are in flight */
+  WalkRequest* acquire() {
+    // start at different positions for different threads to reduce contention
+    size_t start = std::hash<std::thread::id>()(std::this_thread::get_id());
+    while (true) {
+      int32_t seenReleases = releases;
+      WalkRequest* request = claim(WalkState::free, WalkState::preparing, start, [](WalkRequest&) { return true; });
+      if (request != nullptr) {
+        return request;
+      }
+      releases.waitWhileEquals(seenReleases);
+    }
+  }
+
+  /** obtain a free request, returns null if all requests are in flight */
+  WalkRequest* tryAcquire() {
+    size_t start = std::hash<std::thread::id>()(std::this_thread::get_id());
+    return claim(WalkState::free, WalkState::preparing, start, [](WalkRequest&) { return true; });
+  }
+
+  void release(WalkRequest* request) {
+    request->state = WalkState::free;
+    releases.increment();
+  }
+
+  /** claim the next signalled request for the passed thread, async-signal-safe */
+  WalkRequest* claimSignalled(pthread_t thread) {
+    return claim(WalkState::signalled, WalkState::inHandler, 0, [&](WalkRequest &request) {
+      return pthread_equal(request.settings.target->thread, thread);
+    });
+  }
+
+  /** hand the request over to the walker threads, async-signal-safe */
+  void enqueueForWalker(WalkRequest *request) {
+    request->state = WalkState::waitingForWalker;
+    walkerWakeups.increment();
+  }
+
+  /** claim the next request whose signal handler waits for a walker, blocks till one is available
+   * or the walkers are woken up explicitly, returns null in the latter case or if the walker should stop */
+  template <typename R> WalkRequest* claimForWalker(R isRunning) {
+    // read the wake-ups before checking whether to stop, so that a stop cannot slip in unnoticed
+    int32_t seenWakeups = walkerWakeups;
+    if (!isRunning()) {
+      return nullptr;
+    }
+    WalkRequest *request = claim(WalkState::waitingForWalker, WalkState::walking, 0, [](WalkRequest&) { return true; });
+    if (request == nullptr) {
+      walkerWakeups.waitWhileEquals(seenWakeups);
+    }
+    return request;
+  }
+
+  void wakeUpWalkers() {
+    walkerWakeups.increment();
+  }
 };
 
-jthread loopThread;
-std::atomic<WalkSettings*> _walkSettings;
-std::atomic<bool> triggerLoopIteration = {false};
-std::atomic<void*> _ucontext;
-ASGST_CallFrame _frames[MAX_DEPTH];
-ASGST_CallTrace _trace;
-ASGCT_CallFrame _asgct_frames[MAX_DEPTH];
-ASGCT_CallTrace _asgct_trace;
-std::atomic<bool> _finished;
+static WalkRequestPool walkRequests;
 
-// for multiple mode
-MultipleTraces _multipleTraces;
+static void wakeUpWalkers() {
+  walkRequests.wakeUpWalkers();
+}
 
 // deals with ASGCT and ASGST in signal handler
-static void signalHandlerPartOfMultipleTraces(void *ucontext, jint depth, MultipleOptions *options) {
+static void signalHandlerPartOfMultipleTraces(WalkRequest *request, void *ucontext) {
+  MultipleOptions *options = request->settings.multipleOptions;
+  jint depth = request->settings.depth;
   if (options->asgctSig) {
-    asgct(&_multipleTraces.asgctSigTrace, depth, ucontext);
+    asgct(&request->multipleTraces.asgctSigTrace, depth, ucontext);
   }
   for (size_t i = 0; i < options->asgstSigOptions.size(); i++) {
-    AsyncGetStackTrace(&_multipleTraces.asgstSigTraces[i], depth, ucontext, options->asgstSigOptions[i]);
+    AsyncGetStackTrace(&request->multipleTraces.asgstSigTraces[i], depth, ucontext, options->asgstSigOptions[i]);
   }
 }
 
-// see https://mostlynerdless.de/blog/2023/04/21/couldnt-we-just-use-asyncgetcalltrace-in-a-separate-thread/ for more explanations
-static void signalHandler(int signum, siginfo_t *info, void *ucontext) {
-  WalkSettings settings = *_walkSettings.load();
+static void handleWalkRequest(WalkRequest *request, void *ucontext) {
+  request->sampleTime = captureSampleTime(request->signalledAt);
+  samplerStats.recordSince(SamplerPhase::signalDelivery, request->signalledAt);
+  WalkSettings &settings = request->settings;
+  // the virtual thread might have been unmounted (and another one mounted) since the request was made,
+  // it can't change while the handler runs on the carrier
+  if (settings.virtualThreadId != -1 &&
+      settings.target->mountedVirtualThreadId.load(std::memory_order_relaxed) != settings.virtualThreadId) {
+    request->unmounted = true;
+    request->state = WalkState::finished;
+    return;
+  }
+  long walkStart = samplerStats.now();
   switch (settings.mode) {
     case WalkMode::sameThread:
-      AsyncGetStackTrace(&_trace, settings.depth, ucontext, settings.options);
-      _ucontext = nullptr;
-      _finished = true;
+      AsyncGetStackTrace(&request->trace, settings.depth, ucontext, settings.options);
+      samplerStats.recordSince(SamplerPhase::signalHandlerWalk, walkStart);
       break;
     case WalkMode::multipleSig:
-      signalHandlerPartOfMultipleTraces(ucontext, settings.depth, settings.multipleOptions);
-      _ucontext = nullptr;
-      _finished = true;
+      signalHandlerPartOfMultipleTraces(request, ucontext);
+      samplerStats.recordSince(SamplerPhase::signalHandlerWalk, walkStart);
       break;
     case WalkMode::multiple:
     case WalkMode::multipleSep:
     case WalkMode::separateThread:
-      {
-        void* expected = nullptr;
-        if (settings.mode == WalkMode::multiple) {
-          // we also need to run ASGST in the signal handler
-          signalHandlerPartOfMultipleTraces(ucontext, settings.depth, settings.multipleOptions);
-        }
-        if (!_ucontext.compare_exchange_strong(expected, ucontext) || _walkSettings == nullptr) {
-            // another signal handler invocation is already in progress
-            return;
-        }
-        // wait for the stack to be walked, and block the thread from executing
-        // we do not timeout here, as this leads to difficult bugs
-        waitWhile([&](){ return _ucontext != nullptr;});
-        break;
+      if (settings.mode == WalkMode::multiple) {
+        // we also need to run ASGST in the signal handler
+        signalHandlerPartOfMultipleTraces(request, ucontext);
+        samplerStats.recordSince(SamplerPhase::signalHandlerWalk, walkStart);
       }
+      request->ucontext = ucontext;
+      request->enqueuedAt = samplerStats.now();
+      walkRequests.enqueueForWalker(request);
+      // wait for the stack to be walked, and block the thread from executing
+      // we do not timeout here, as this leads to difficult bugs
+      request->state.waitUntil([](WalkState state) { return state == WalkState::walked; });
+      break;
     case WalkMode::asgctSameThread:
-      asgct(&_asgct_trace, settings.depth, (ucontext_t*)ucontext);
-      _ucontext = nullptr;
-      _finished = true;
+      asgct(&request->asgctTrace, settings.depth, (ucontext_t*)ucontext);
+      samplerStats.recordSince(SamplerPhase::signalHandlerWalk, walkStart);
       break;
   }
+  request->state = WalkState::finished;
 }
 
-static void loopPartOfMultipleTraces(void *ucontext, jint depth, MultipleOptions *options) {
-  for (size_t i = 0; i < options->asgstSepThreadOptions.size(); i++) {
-    AsyncGetStackTrace(&_multipleTraces.asgstSepThreadTraces[i], depth, ucontext, options->asgstSepThreadOptions[i]);
-  }
-}
-
+/** what triggers the samples of the continuous sampling, see Tracer.SamplingTrigger */
+enum class SamplingTrigger : int {
+  /** a native thread signals all sampled threads every interval */
+  signalThread = 0,
+  /** every sampled thread has a timer on its CPU clock that fires every interval of CPU time */
+  cpuTimer = 1,
+  /** every sampled thread has a perf_event_open PERF_COUNT_SW_CPU_CLOCK event */
+  perfCpuClock = 2,
+  /** every sampled thread has a perf_event_open PERF_COUNT_SW_TASK_CLOCK event */
+  perfTaskClock = 3
+};
 
-void loop() {
-  JNIEnv *env;
-  jvm->AttachCurrentThreadAsDaemon((void**)&env, nullptr);
-  jvmti->GetCurrentThread(&loopThread);
-  registerThread(env, loopThread);
-  while (!shouldStop) {
-
-    while (!triggerLoopIteration) {
-      if (shouldStop) {
-        triggerLoopIteration = false;
-        return;
-      }
-    }
-    triggerLoopIteration = false;
-    WalkSettings settings = *_walkSettings.load();
+/** settings of the continuous sampling */
+struct ContinuousSettings {
+  jint depth;
+  // only the signal handler options are used
+  MultipleOptions options;
+  size_t capacity;
+  long intervalNanos;
+  SamplingTrigger trigger;
+
+  int traceCount() const {
+    return 1 + options.asgstSigOptions.size();
+  }
+};
 
-    if (sendSignal(settings.thread)) {
-      // wait for the stack to be walked, and block the thread from executing
-      // we do not timeout here, as this leads to difficult bugs
-      waitWhile([&](){ return _ucontext == nullptr;});
-
-      switch (settings.mode) {
-        case WalkMode::multiple:
-        case WalkMode::multipleSep:
-          loopPartOfMultipleTraces((void*)_ucontext.load(), settings.depth, settings.multipleOptions);
-          break;
-        case WalkMode::separateThread:
-          AsyncGetStackTrace(&_trace, settings.depth, (void*)_ucontext.load(), settings.options);
-          break;
-        default:
-          break;
+/**
+ * Samples all registered threads continuously: a trigger thread signals them every interval,
+ * their signal handlers write the raw traces into per thread ring buffers (without blocking),
+ * which are drained and materialized by the consumers later.
+ */
+class ContinuousSampler {
+  // guards the buffers, never acquired in signal handlers
+  std::recursive_mutex buffersMutex;
+  std::vector<SampleRingBuffer*> buffers;
+  // threads whose state currently points to one of the buffers
+  std::vector<ThreadState*> sampledThreads;
+  size_t nextBufferToDrain = 0;
+  // samples lost in buffers that are already deleted
+  uint64_t lostInDeletedBuffers = 0;
+  std::atomic<ContinuousSettings*> settings = {nullptr};
+  // number of signal handlers that currently record a sample
+  WaitableAtomic<int32_t> activeHandlers = {0};
+  std::thread triggerThread;
+  WaitableAtomic<int32_t> stopRequests;
+  // see Tracer.attachBuffer
+  SampleBufferWriter output;
+
+  void triggerLoop(long intervalNanos) {
+    int32_t stops = stopRequests;
+    while (stopRequests == stops) {
+      {
+        std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+        for (SampleRingBuffer *buffer : buffers) {
+          if (!buffer->ended()) {
+            buffer->markSignalled(nanotime());
+            sendSignal(buffer->owner());
+          }
+        }
       }
+      stopRequests.waitWhileEquals(stops, intervalNanos);
     }
-    _ucontext = nullptr;
-    _walkSettings = nullptr;
-    _finished = true;
   }
-  jvm->DetachCurrentThread();
-}
 
-ASGCT_CallTrace* runASGCTInSignalHandler(JNIEnv *env, JNIEnv* threadEnv, pthread_t thread, jint depth) {
-  _asgct_trace.frames = _asgct_frames;
-  _asgct_trace.env_id = threadEnv;
-  WalkSettings settings{WalkMode::asgctSameThread, nullptr, depth, 0, thread};
-  _walkSettings = &settings;
-  _finished = false;
-  _ucontext = nullptr;
-  if (!sendSignal(settings.thread)) {
-    fprintf(stderr, "failed to send signal to thread\n");
-    return nullptr;
+  void deleteBuffer(SampleRingBuffer *buffer) {
+    lostInDeletedBuffers += buffer->lost();
+    delete buffer;
   }
-  waitWhile([&](){ return _finished == false;});
-  return &_asgct_trace;
-}
 
-ASGST_CallTrace* runASGST(WalkSettings settings) {
-  _trace.frames = _frames;
-  _walkSettings = &settings;
-  _finished = false;
-  _ucontext = nullptr;
-  if (settings.mode == WalkMode::sameThread) {
-    if (!sendSignal(settings.thread)) {
-      return nullptr;
+  jobjectArray toTraceArray(JNIEnv *env, SampleRingBuffer *buffer, char *sample) {
+    RawSample raw(sample, buffer->depth());
+    jobjectArray array = env->NewObjectArray(buffer->traceCount(), findClass(env, javaTraceClass, "tester/Trace"), nullptr);
+    if (raw.traceHeader(0)->kind != 0) {
+      ASGCT_CallTrace asgctTrace = raw.asgctTrace(0);
+      jobject trace = createTraceWithoutTracerFrames(env, &asgctTrace);
+      env->SetObjectArrayElement(array, 0, trace);
+      env->DeleteLocalRef(trace);
     }
-  } else if (settings.mode == WalkMode::separateThread) {
-    triggerLoopIteration = true;
-  } else {
-    throw std::runtime_error("unknown walk mode");
+    for (int i = 1; i < buffer->traceCount(); i++) {
+      ASGST_CallTrace asgstTrace = raw.asgstTrace(i);
+      jobject trace = createTraceWithoutTracerFrames(env, &asgstTrace);
+      env->SetObjectArrayElement(array, i, trace);
+      env->DeleteLocalRef(trace);
+    }
+    return array;
   }
-  waitWhile([&](){ return _finished == false;});
-  return &_trace;
-}
 
-/*
- * Class:     tester_Tracer
- * Method:    runASGSTInSignalHandler
+  /**
+   * Passes up to maxSamples samples to the consumer, taking one sample per thread in turn,
+   * stops if the consumer returns false (the sample is then kept in its buffer)
+   */
+  template <typename C> void drain(size_t maxSamples, C consumer) {
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    size_t drained = 0;
+    bool foundSample = true;
+    bool consumerFull = false;
+    while (drained < maxSamples && foundSample && !consumerFull && !buffers.empty()) {
+      foundSample = false;
+      for (size_t i = 0; i < buffers.size() && drained < maxSamples; i++) {
+        SampleRingBuffer *buffer = buffers[(nextBufferToDrain + i) % buffers.size()];
+        char *sample = buffer->peek();
+        if (sample != nullptr) {
+          if (!consumer(buffer, sample)) {
+            consumerFull = true;
+            break;
+          }
+          buffer->pop();
+          drained++;
+          foundSample = true;
+        }
+      }
+      nextBufferToDrain++;
+    }
+    // delete the buffers of ended threads that are fully drained
+    auto end = std::remove_if(buffers.begin(), buffers.end(), [&](SampleRingBuffer *buffer) {
+      if (buffer->ended() && buffer->empty()) {
+        deleteBuffer(buffer);
+        return true;
+      }
+      return false;
+    });
+    buffers.erase(end, buffers.end());
+  }
+
+public:
+
+  bool isActive() {
+    return settings.load() != nullptr;
+  }
+
+  /** starts recording samples, threads have to be added afterwards and then the trigger has to be started */
+  void start(ContinuousSettings *newSettings) {
+    stop();
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    for (SampleRingBuffer *buffer : buffers) {
+      deleteBuffer(buffer);
+    }
+    buffers.clear();
+    settings = newSettings;
+  }
+
+  /** starts the trigger thread, the CPU timers are started when the threads are added */
+  void startTrigger() {
+    if (settings.load()->trigger != SamplingTrigger::signalThread) {
+      return;
+    }
+    long intervalNanos = settings.load()->intervalNanos;
+    triggerThread = std::thread([this, intervalNanos]() { triggerLoop(intervalNanos); });
+  }
+
+  /** samples the thread continuously from now on, if the sampling is active */
+  void addThread(ThreadState *state) {
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    ContinuousSettings *s = settings;
+    if (s == nullptr || state->sampleBuffer.load() != nullptr || state->isWalker) {
+      return;
+    }
+    SampleRingBuffer *buffer = new SampleRingBuffer(state->thread, state->javaThreadId, s->capacity, s->traceCount(),
+      s->depth);
+    buffers.push_back(buffer);
+    sampledThreads.push_back(state);
+    state->sampleBuffer = buffer;
+    switch (s->trigger) {
+      case SamplingTrigger::cpuTimer:
+        state->cpuTimer.start(state->thread, state->osThreadId, s->intervalNanos);
+        break;
+      case SamplingTrigger::perfCpuClock:
+      case SamplingTrigger::perfTaskClock:
+        state->perfEvent.start(state->osThreadId, s->intervalNanos, s->trigger == SamplingTrigger::perfTaskClock);
+        break;
+      default:
+        break;
+    }
+  }
+
+  /** called on the ending thread, its samples can still be drained */
+  void removeThread(ThreadState *state) {
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    state->cpuTimer.stop();
+    state->perfEvent.stop();
+    SampleRingBuffer *buffer = state->sampleBuffer.exchange(nullptr);
+    if (buffer != nullptr) {
+      buffer->markEnded();
+    }
+    sampledThreads.erase(std::remove(sampledThreads.begin(), sampledThreads.end(), state), sampledThreads.end());
+  }
+
+  void stop() {
+    if (triggerThread.joinable()) {
+      stopRequests.increment();
+      triggerThread.join();
+    }
+    ContinuousSettings *old = settings.exchange(nullptr);
+    if (old == nullptr) {
+      return;
+    }
+    // wait for the signal handlers that might still use the settings or buffers
+    activeHandlers.waitUntil([](int32_t handlers) { return handlers == 0; });
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    for (ThreadState *state : sampledThreads) {
+      state->cpuTimer.stop();
+      state->perfEvent.stop();
+      state->sampleBuffer = nullptr;
+    }
+    sampledThreads.clear();
+    for (SampleRingBuffer *buffer : buffers) {
+      buffer->markEnded();
+    }
+    delete old;
+  }
+
+  /**
+   * records a sample of the current thread, async-signal-safe
+   *
+   * @param fromTriggerThread was the signal sent by the trigger thread (and not by a timer or perf event)
+   */
+  void record(void *ucontext, bool fromTriggerThread) {
+    activeHandlers.increment();
+    PhaseTimer timer(SamplerPhase::continuousRecord);
+    ContinuousSettings *s = settings;
+    ThreadState *state = s == nullptr ? nullptr : (ThreadState*)pthread_getspecific(threadStateKey);
+    SampleRingBuffer *buffer = state == nullptr ? nullptr : state->sampleBuffer.load();
+    char *sample = buffer == nullptr ? nullptr : buffer->beginWrite();
+    if (sample != nullptr) {
+      RawSample raw(sample, buffer->depth());
+      raw.header()->time = captureSampleTime(fromTriggerThread ? buffer->signalledAt() : 0);
+      // the thread id map is lock-free, so the sample can be tagged directly in the signal handler
+      javaThreadId_t javaThreadId = threadIdMap.getJavaThreadId(state->osThreadId);
+      javaThreadId = javaThreadId == -1 ? buffer->javaThreadId() : javaThreadId;
+      // carriers run the stack of their mounted virtual thread, so the sample belongs to it
+      javaThreadId_t virtualThreadId = state->mountedVirtualThreadId.load(std::memory_order_relaxed);
+      raw.header()->javaThreadId = virtualThreadId == -1 ? javaThreadId : virtualThreadId;
+      raw.header()->carrierThreadId = virtualThreadId == -1 ? -1 : javaThreadId;
+      ASGCT_CallTrace asgctTrace = {state->env, 0, (ASGCT_CallFrame*)raw.frames(0)};
+      if (s->options.asgctSig) {
+        asgct(&asgctTrace, s->depth, ucontext);
+      }
+      *raw.traceHeader(0) = {asgctTrace.num_frames, (uint8_t)(s->options.asgctSig ? ASGST_JAVA_TRACE : 0), 0};
+      for (size_t i = 0; i < s->options.asgstSigOptions.size(); i++) {
+        ASGST_CallTrace trace;
+        trace.frames = raw.frames(i + 1);
+        trace.num_frames = 0;
+        trace.kind = 0;
+        trace.state = 0;
+        AsyncGetStackTrace(&trace, s->depth, ucontext, s->options.asgstSigOptions[i]);
+        *raw.traceHeader(i + 1) = {trace.num_frames, trace.kind, trace.state};
+      }
+      buffer->endWrite();
+    }
+    activeHandlers.decrement();
+  }
+
+  /**
+   * Materializes up to maxSamples samples, taking one sample per thread in turn,
+   * returns the samples as arrays in the format of MultipleTraces::toTraceArray
+   */
+  std::vector<std::pair<SampleHeader, jobjectArray>> drain(JNIEnv *env, size_t maxSamples) {
+    std::vector<std::pair<SampleHeader, jobjectArray>> samples;
+    drain(maxSamples, [&](SampleRingBuffer *buffer, char *sample) {
+      samples.push_back({*(SampleHeader*)sample, toTraceArray(env, buffer, sample)});
+      return true;
+    });
+    return samples;
+  }
+
+  /** memory that drainIntoBuffer writes to, null detaches it */
+  void attachBuffer(char *start, size_t capacity) {
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    output.attach(start, capacity);
+  }
+
+  /**
+   * Writes up to maxSamples samples into the attached buffer (see SampleBufferWriter), without creating
+   * any Java objects, returns the number of written bytes or -1 if no buffer is attached
+   */
+  long drainIntoBuffer(size_t maxSamples) {
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    if (!output.isAttached()) {
+      return -1;
+    }
+    output.reset();
+    drain(maxSamples, [&](SampleRingBuffer *buffer, char *sample) {
+      return output.write(RawSample(sample, buffer->depth()), buffer->traceCount());
+    });
+    return output.size();
+  }
+
+  /** number of samples that were dropped because the buffers were full */
+  uint64_t lost() {
+    std::lock_guard<std::recursive_mutex> lock(buffersMutex);
+    uint64_t result = lostInDeletedBuffers;
+    for (SampleRingBuffer *buffer : buffers) {
+      result += buffer->lost();
+    }
+    return result;
+  }
+};
+
+static ContinuousSampler continuousSampler;
+
+static void onContinuousThreadStart(ThreadState *state) {
+  continuousSampler.addThread(state);
+}
+
+static void onContinuousThreadEnd(ThreadState *state) {
+  continuousSampler.removeThread(state);
+}
+
+// see https://mostlynerdless.de/blog/2023/04/21/couldnt-we-just-use-asyncgetcalltrace-in-a-separate-thread/ for more explanations
+static void signalHandler(int signum, siginfo_t *info, void *ucontext) {
+  if (ThreadPerfEvent::isOverflowSignal(info)) {
+    ThreadPerfEvent::rearm(info);
+  }
+  pthread_t self = pthread_self();
+  ThreadState *state = (ThreadState*)pthread_getspecific(threadStateKey);
+  // process all requests for this thread, signals that arrive while the handler runs are merged by the OS,
+  // the pool is only scanned if requests are pending (unregistered threads have no counter)
+  WalkRequest *request;
+#if defined(__APPLE__) && defined(__MACH__)
+  bool handledRequest = false;
+#endif
+  if (state == nullptr || state->pendingWalkRequests.load() > 0) {
+    while ((request = walkRequests.claimSignalled(self)) != nullptr) {
+      request->settings.target->pendingWalkRequests--;
+      handleWalkRequest(request, ucontext);
+#if defined(__APPLE__) && defined(__MACH__)
+      handledRequest = true;
+#endif
+    }
+  }
+#if defined(__APPLE__) && defined(__MACH__)
+  // signals carry no value, so only signals that processed no request are samples
+  if (!handledRequest) {
+    continuousSampler.record(ucontext, false);
+  }
+#else
+  // a sampling signal is recorded even if it also processed requests, walk request signals never are,
+  // even if they processed no request (their request was processed by the handler of a merged signal)
+  if (!isWalkRequestSignal(info)) {
+    continuousSampler.record(ucontext, info->si_code == SI_QUEUE);
+  }
+#endif
+}
+
+static void loopPartOfMultipleTraces(WalkRequest *request) {
+  MultipleOptions *options = request->settings.multipleOptions;
+  for (size_t i = 0; i < options->asgstSepThreadOptions.size(); i++) {
+    AsyncGetStackTrace(&request->multipleTraces.asgstSepThreadTraces[i], request->settings.depth,
+      request->ucontext, options->asgstSepThreadOptions[i]);
+  }
+}
+
+
+/** the walker with the given index of the walker pool */
+void loop(size_t index) {
+  JNIEnv *env;
+  isAttachingWalker = true;
+  JavaVMAttachArgs args = {JNI_VERSION_1_8, (char*)"Tracer Walker", nullptr};
+  jvm->AttachCurrentThreadAsDaemon((void**)&env, &args);
+  // attaching usually posts a thread start event, which already registered the walker
+  if (pthread_getspecific(threadStateKey) == nullptr) {
+    jthread thread;
+    jvmti->GetCurrentThread(&thread);
+    registerThread(env, thread, true);
+  }
+  while (walkerPool.isRunning(index)) {
+    WalkRequest *request = walkRequests.claimForWalker([&]() { return walkerPool.isRunning(index); });
+    if (request == nullptr) {
+      continue;
+    }
+    samplerStats.recordSince(SamplerPhase::walkerHandoff, request->enqueuedAt);
+    long walkStart = samplerStats.now();
+    switch (request->settings.mode) {
+      case WalkMode::multiple:
+      case WalkMode::multipleSep:
+        loopPartOfMultipleTraces(request);
+        break;
+      case WalkMode::separateThread:
+        AsyncGetStackTrace(&request->trace, request->settings.depth, request->ucontext, request->settings.options);
+        break;
+      default:
+        break;
+    }
+    samplerStats.recordSince(SamplerPhase::walkerWalk, walkStart);
+    request->state = WalkState::walked;
+  }
+  jvm->DetachCurrentThread();
+}
+
+/** withdraw a signalled request that the signal handler has not claimed, returns false if it has been claimed */
+bool cancelWalkRequest(WalkRequest *request) {
+  WalkState expected = WalkState::signalled;
+  if (request->state.compare_exchange_strong(expected, WalkState::finished)) {
+    request->settings.target->pendingWalkRequests--;
+    return true;
+  }
+  return false;
+}
+
+/** signals the target thread of the prepared request, returns false if the signal could not be sent */
+bool startWalkRequest(WalkRequest *request) {
+  request->signalledAt = nanotime();
+  request->unmounted = false;
+  // announce the request before it can be claimed
+  request->settings.target->pendingWalkRequests++;
+  request->state = WalkState::signalled;
+  if (!sendSignal(request->settings.target->thread, WALK_REQUEST_SIGNAL) && cancelWalkRequest(request)) {
+    dropCounters.signalFailed++;
+    return false;
+  }
+  return true;
+}
+
+/**
+ * waits till the walk of a started request is finished,
+ * returns false if the signal handler didn't claim the request in time, e.g. because the thread ended,
+ * or if the virtual thread to walk was not mounted anymore
+ */
+bool awaitWalkRequest(WalkRequest *request) {
+  auto isFinished = [](WalkState state) { return state == WalkState::finished; };
+  if (!request->state.waitUntil(isFinished, walkRequestTimeoutNanos.load())) {
+    if (cancelWalkRequest(request)) {
+      dropCounters.timedOut++;
+      return false;
+    }
+    // the signal handler already processes the request, so it will finish it
+    request->state.waitUntil(isFinished);
+  }
+  samplerStats.recordSince(SamplerPhase::requesterWait, request->signalledAt);
+  return !request->unmounted;
+}
+
+/** signals the target thread of the prepared request and waits till the walk is finished,
+ * returns false if the signal could not be sent or was not handled in time */
+bool runWalkRequest(WalkRequest *request) {
+  return startWalkRequest(request) && awaitWalkRequest(request);
+}
+
+ASGCT_CallTrace* runASGCTInSignalHandler(WalkRequest *request, ThreadState *target, javaThreadId_t virtualThreadId,
+    jint depth) {
+  request->asgctTrace.frames = request->asgctFrames.ensure(std::max(depth, 0));
+  request->asgctTrace.num_frames = 0;
+  request->asgctTrace.env_id = target->env;
+  request->settings = {WalkMode::asgctSameThread, nullptr, depth, 0, target, virtualThreadId};
+  if (!runWalkRequest(request)) {
+    fprintf(stderr, "failed to send signal to thread\n");
+    return nullptr;
+  }
+  return &request->asgctTrace;
+}
+
+ASGST_CallTrace* runASGST(WalkRequest *request, WalkSettings settings) {
+  if (settings.mode != WalkMode::sameThread && settings.mode != WalkMode::separateThread) {
+    throw std::runtime_error("unknown walk mode");
+  }
+  request->trace.frames = request->frames.ensure(std::max(settings.depth, 0));
+  request->trace.num_frames = 0;
+  request->trace.kind = 0;
+  request->trace.state = 0;
+  request->settings = settings;
+  if (!runWalkRequest(request)) {
+    return nullptr;
+  }
+  return &request->trace;
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    runASGSTInSignalHandler
  * Signature: (IJI)Ltester/Trace;
  */
 JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGSTInSignalHandler
   (JNIEnv *env, jclass, jint options, jobject thread, jint depth) {
-  ASGST_CallTrace* trace = runASGST({WalkMode::sameThread, nullptr, depth, options, getStateForJThread(env, thread).thread});
-  return createTraceWithoutTracerFrames(env, trace);
+  javaThreadId_t virtualThreadId;
+  ThreadState *state = getStateForJThread(env, thread, &virtualThreadId);
+  if (state == nullptr) {
+    return nullptr;
+  }
+  WalkRequest *request = walkRequests.acquire();
+  ASGST_CallTrace* trace = runASGST(request, {WalkMode::sameThread, nullptr, depth, options, state, virtualThreadId});
+  jobject t = trace == nullptr ? nullptr : createTraceWithoutTracerFrames(env, trace);
+  walkRequests.release(request);
+  return t;
 }
 
 /*
@@ -649,11 +1640,22 @@ JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGSTInSignalHandler
  */
 JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGSTInSeparateThread
   (JNIEnv *env, jclass, jint options, jobject thread, jint depth) {
-  ASGST_CallTrace* trace = runASGST({WalkMode::separateThread, nullptr, depth, options, getStateForJThread(env, thread).thread});
-  int app = countFirstTracerFrames(trace);
-  trace->num_frames -= app;
-  trace->frames += app;
-  auto t = createTraceWithoutTracerFrames(env, trace);
+  javaThreadId_t virtualThreadId;
+  ThreadState *state = getStateForJThread(env, thread, &virtualThreadId);
+  if (state == nullptr) {
+    return nullptr;
+  }
+  WalkRequest *request = walkRequests.acquire();
+  ASGST_CallTrace* trace = runASGST(request, {WalkMode::separateThread, nullptr, depth, options, state,
+    virtualThreadId});
+  jobject t = nullptr;
+  if (trace != nullptr) {
+    int app = countFirstTracerFrames(trace);
+    trace->num_frames -= app;
+    trace->frames += app;
+    t = createTraceWithoutTracerFrames(env, trace);
+  }
+  walkRequests.release(request);
   return t;
 }
 
@@ -664,52 +1666,197 @@ JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGSTInSeparateThread
  */
 JNIEXPORT jobject JNICALL Java_tester_Tracer_runASGCTInSignalHandler
   (JNIEnv *env, jclass, jobject thread, jint depth) {
-  ThreadState state = getStateForJThread(env, thread);
-  ASGCT_CallTrace* trace = runASGCTInSignalHandler(env, state.env, state.thread, depth);
-  if (trace == nullptr) {
+  javaThreadId_t virtualThreadId;
+  ThreadState *state = getStateForJThread(env, thread, &virtualThreadId);
+  if (state == nullptr) {
     return nullptr;
   }
-  int app = countFirstTracerFrames(trace);
-  trace->num_frames -= app;
-  trace->frames += app;
-  auto t = createTraceWithoutTracerFrames(env, trace);
+  WalkRequest *request = walkRequests.acquire();
+  ASGCT_CallTrace* trace = runASGCTInSignalHandler(request, state, virtualThreadId, depth);
+  jobject t = nullptr;
+  if (trace != nullptr) {
+    int app = countFirstTracerFrames(trace);
+    trace->num_frames -= app;
+    trace->frames += app;
+    t = createTraceWithoutTracerFrames(env, trace);
+  }
+  walkRequests.release(request);
   return t;
 }
 
+/** prepares the request for a multiple mode walk, returns false if nothing has to be walked via signals */
+bool prepareMultipleRequest(WalkRequest *request, ThreadState *state, javaThreadId_t virtualThreadId, jint depth,
+    const MultipleOptions &options) {
+  request->multipleOptions = options;
+  MultipleOptions *opts = &request->multipleOptions;
+  request->settings = {WalkMode::multiple, opts, depth, 0, state, virtualThreadId};
+  request->sampleTime = {0, -1, -1};
+  request->multipleTraces.init(state->env, opts, depth);
+  if (!opts->needsSeparateThread() && opts->needsSignalHandler()) {
+    request->settings.mode = WalkMode::multipleSig;
+  } else if (!opts->needsSignalHandler()) {
+    request->settings.mode = WalkMode::multipleSep;
+  }
+  return opts->needsSeparateThread() || opts->needsSignalHandler();
+}
+
+/** stores the time as the index-th triple (timestamp, thread CPU time, signal delay) of the array */
+static void storeSampleTime(JNIEnv *env, jlongArray times, jsize index, const SampleTime &time) {
+  jlong values[] = {(jlong)time.timestamp, (jlong)time.threadCpuTime, (jlong)time.signalDelay};
+  env->SetLongArrayRegion(times, index * 3, 3, values);
+}
+
 JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_runMultiple
   (JNIEnv *env, jclass, jobject thread, jint depth, jboolean asgctSig,
-   jintArray asgstSepThreadOptions, jintArray asgstSigOptions) {
-  ThreadState state = getStateForJThread(env, thread);
+   jintArray asgstSepThreadOptions, jintArray asgstSigOptions, jlongArray times) {
+  javaThreadId_t virtualThreadId;
+  ThreadState *state = getStateForJThread(env, thread, &virtualThreadId);
+  if (state == nullptr) {
+    return nullptr;
+  }
+  WalkRequest *request = walkRequests.acquire();
   MultipleOptions opts{asgctSig,
       intArrayToVector(env, asgstSepThreadOptions), intArrayToVector(env, asgstSigOptions)};
-  WalkSettings settings{WalkMode::multiple,
-    &opts, depth, 0, state.thread};
-  _multipleTraces.init(state.env, settings.multipleOptions);
-  if (!settings.multipleOptions->needsSeparateThread() && settings.multipleOptions->needsSignalHandler()) {
-    settings.mode = WalkMode::multipleSig;
-    _finished = false;
-    _ucontext = nullptr;
-    _walkSettings = &settings;
-    if (!sendSignal(settings.thread)) {
-      return nullptr;
+  if (prepareMultipleRequest(request, state, virtualThreadId, depth, opts) && !runWalkRequest(request)) {
+    walkRequests.release(request);
+    return nullptr;
+  }
+  storeSampleTime(env, times, 0, request->sampleTime);
+  jobjectArray array = request->multipleTraces.toTraceArray(env);
+  walkRequests.release(request);
+  return array;
+}
+
+/** maximum number of threads that are walked at the same time by a single batch call,
+ * less than the number of requests, so that other callers are not starved */
+const int MAX_BATCH_SIZE = MAX_WALK_REQUESTS / 4;
+
+jclass traceArrayClass;
+
+/**
+ * walks the threads in batches with the multiple mode and passes every walked request
+ * (or null if the thread could not be walked) with the index of its thread to the consumer
+ */
+template <typename C> void walkBatch(JNIEnv *env, jobjectArray threads, jint depth, const MultipleOptions &opts,
+    C consumer) {
+  jsize threadCount = env->GetArrayLength(threads);
+  std::array<WalkRequest*, MAX_BATCH_SIZE> requests;
+  std::array<bool, MAX_BATCH_SIZE> needsWalk;
+  std::array<bool, MAX_BATCH_SIZE> started;
+  jsize batchStart = 0;
+  while (batchStart < threadCount) {
+    jsize batchSize = std::min(threadCount - batchStart, (jsize)MAX_BATCH_SIZE);
+    // signal all threads first, so that they are walked in parallel
+    for (jsize i = 0; i < batchSize; i++) {
+      // only block for the first request, blocking while holding requests might dead-lock
+      requests[i] = i == 0 ? walkRequests.acquire() : walkRequests.tryAcquire();
+      if (requests[i] == nullptr) {
+        batchSize = i;
+        break;
+      }
+      jobject thread = env->GetObjectArrayElement(threads, batchStart + i);
+      javaThreadId_t virtualThreadId;
+      ThreadState *state = getStateForJThread(env, thread, &virtualThreadId);
+      env->DeleteLocalRef(thread);
+      if (state == nullptr) {
+        // e.g. a virtual thread that has been unmounted since it was selected
+        needsWalk[i] = false;
+        started[i] = false;
+        continue;
+      }
+      needsWalk[i] = prepareMultipleRequest(requests[i], state, virtualThreadId, depth, opts);
+      started[i] = !needsWalk[i] || startWalkRequest(requests[i]);
     }
-  } else if (settings.multipleOptions->needsSeparateThread()) {
-    if (!settings.multipleOptions->needsSignalHandler()) {
-      settings.mode = WalkMode::multipleSep;
-    } else {
-      settings.mode = WalkMode::multiple;
+    // then process the traces in order, while the other threads are still walked
+    for (jsize i = 0; i < batchSize; i++) {
+      if (started[i] && (!needsWalk[i] || awaitWalkRequest(requests[i]))) {
+        consumer(batchStart + i, requests[i]);
+      } else {
+        consumer(batchStart + i, nullptr);
+      }
+      walkRequests.release(requests[i]);
     }
-    _walkSettings = &settings;
-    triggerLoopIteration = true;
-    _finished = false;
-    _ucontext = nullptr;
+    batchStart += batchSize;
   }
-  waitWhile([&](){ return _finished == false;});
-  return _multipleTraces.toTraceArray(env);
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    runMultipleBatch
+ * Signature: ([Ljava/lang/Thread;IZ[I[I[J)[[Ltester/Trace;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_runMultipleBatch
+  (JNIEnv *env, jclass, jobjectArray threads, jint depth, jboolean asgctSig,
+   jintArray asgstSepThreadOptions, jintArray asgstSigOptions, jlongArray times) {
+  MultipleOptions opts{asgctSig,
+      intArrayToVector(env, asgstSepThreadOptions), intArrayToVector(env, asgstSigOptions)};
+  jobjectArray result = env->NewObjectArray(env->GetArrayLength(threads),
+    findClass(env, traceArrayClass, "[Ltester/Trace;"), nullptr);
+  walkBatch(env, threads, depth, opts, [&](jsize index, WalkRequest *request) {
+    if (request != nullptr) {
+      storeSampleTime(env, times, index, request->sampleTime);
+      jobjectArray traces = request->multipleTraces.toTraceArray(env);
+      env->SetObjectArrayElement(result, index, traces);
+      env->DeleteLocalRef(traces);
+    }
+  });
+  return result;
+}
+
+/** result of the native comparison per thread, see Tracer.NATIVE_COMPARISON_EQUAL */
+enum class ComparisonStatus : jint { notWalked = 0, equal = 1, unequal = 2 };
+
+/*
+ * Class:     tester_Tracer
+ * Method:    runMultipleBatchAndCompare
+ * Signature: ([Ljava/lang/Thread;IZ[I[I[IZ[I[J)[[Ltester/Trace;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_runMultipleBatchAndCompare
+  (JNIEnv *env, jclass, jobjectArray threads, jint depth, jboolean asgctSig,
+   jintArray asgstSepThreadOptions, jintArray asgstSigOptions, jintArray traceOrder,
+   jboolean allowOverApproximation, jintArray statuses, jlongArray times) {
+  MultipleOptions opts{asgctSig,
+      intArrayToVector(env, asgstSepThreadOptions), intArrayToVector(env, asgstSigOptions)};
+  std::vector<int> order = intArrayToVector(env, traceOrder);
+  jobjectArray result = nullptr;
+  std::vector<ComparableTrace> traces;
+  traces.reserve(order.size());
+  walkBatch(env, threads, depth, opts, [&](jsize index, WalkRequest *request) {
+    ComparisonStatus status = ComparisonStatus::notWalked;
+    if (request != nullptr) {
+      traces.clear();
+      request->multipleTraces.addComparableTraces(order, depth, traces);
+      status = compareTraces(traces, allowOverApproximation) ? ComparisonStatus::equal : ComparisonStatus::unequal;
+    }
+    if (status == ComparisonStatus::unequal) {
+      // only materialize the traces that need further inspection
+      if (result == nullptr) {
+        result = env->NewObjectArray(env->GetArrayLength(threads), findClass(env, traceArrayClass,
+          "[Ltester/Trace;"), nullptr);
+      }
+      storeSampleTime(env, times, index, request->sampleTime);
+      jobjectArray traceArray = request->multipleTraces.toTraceArray(env);
+      env->SetObjectArrayElement(result, index, traceArray);
+      env->DeleteLocalRef(traceArray);
+    }
+    jint statusValue = (jint)status;
+    env->SetIntArrayRegion(statuses, index, 1, &statusValue);
+  });
+  return result;
 }
 
 jclass threadClass;
 
+static jobjectArray toThreadArray(JNIEnv *env, const std::vector<jthread> &threads) {
+  jclass thread = findClass(env, threadClass, "java/lang/Thread");
+  jobjectArray result = env->NewObjectArray(threads.size(), thread, nullptr);
+  for (size_t i = 0; i < threads.size(); i++) {
+    env->SetObjectArrayElement(result, i, threads[i]);
+    env->DeleteLocalRef(threads[i]);
+  }
+  return result;
+}
+
 /*
  * Class:     tester_Tracer
  * Method:    getThreads
@@ -717,35 +1864,342 @@ jclass threadClass;
  */
 JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_getThreads
   (JNIEnv *env, jclass) {
-  // obtain all Java threads
-  jthread* threads;
-  jint threads_count;
-  jvmti->GetAllThreads(&threads_count, &threads);
-
-  std::vector<jthread> threads_vec;
-  for (int i = 0; i < threads_count; i++) {
-    jthread thread = threads[i];
-    // is java thread?
-    jint state;
-    jvmti->GetThreadState(thread, &state);
-    if ((state & JVMTI_THREAD_STATE_ALIVE) == 0) {
-      // skip dead threads
-      continue;
-    }
-    if (loopThread == thread) {
-      // skip loop thread
+  return toThreadArray(env, threadStateIndex.liveThreadRefs(env));
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    setVirtualThreadSupport
+ * Signature: (Z)Z
+ */
+JNIEXPORT jboolean JNICALL Java_tester_Tracer_setVirtualThreadSupport
+  (JNIEnv *env, jclass, jboolean enable) {
+  return setVirtualThreadTracking(env, enable);
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getMountedVirtualThreads
+ * Signature: ()[Ljava/lang/Thread;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_getMountedVirtualThreads
+  (JNIEnv *env, jclass) {
+  return toThreadArray(env, threadStateIndex.mountedVirtualThreadRefs(env));
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    selectThreads
+ * Signature: (IJ)[Ljava/lang/Thread;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_selectThreads
+  (JNIEnv *env, jclass, jint maxThreads, jlong excludedThreadId) {
+  return toThreadArray(env, threadStateIndex.selectLiveThreadRefs(env, std::max(maxThreads, 0), excludedThreadId));
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    selectOnCpuThreads
+ * Signature: (IJ)[Ljava/lang/Thread;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_selectOnCpuThreads
+  (JNIEnv *env, jclass, jint maxThreads, jlong excludedThreadId) {
+  return toThreadArray(env, threadStateIndex.selectOnCpuThreadRefs(env, std::max(maxThreads, 0), excludedThreadId));
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    setSamplerStatsEnabled
+ * Signature: (Z)V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_setSamplerStatsEnabled
+  (JNIEnv *, jclass, jboolean enabled) {
+  samplerStats.setEnabled(enabled);
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    isSamplerStatsEnabled
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_tester_Tracer_isSamplerStatsEnabled
+  (JNIEnv *, jclass) {
+  return samplerStats.isEnabled();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    resetSamplerStats
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_resetSamplerStats
+  (JNIEnv *, jclass) {
+  samplerStats.reset();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getSamplerStatValues
+ * Signature: ()[J
+ */
+JNIEXPORT jlongArray JNICALL Java_tester_Tracer_getSamplerStatValues
+  (JNIEnv *env, jclass) {
+  std::array<int64_t, SAMPLER_PHASES * SAMPLER_STATS_VALUES> values;
+  samplerStats.write(values.data());
+  jlongArray result = env->NewLongArray(values.size());
+  env->SetLongArrayRegion(result, 0, values.size(), (jlong*)values.data());
+  return result;
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    setWaitStrategy
+ * Signature: (II)V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_setWaitStrategy
+  (JNIEnv *env, jclass, jint spinIterations, jint yieldIterations) {
+  waitStrategy.spinIterations = std::max(0, (int)spinIterations);
+  waitStrategy.yieldIterations = std::max(0, (int)yieldIterations);
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getWaitStrategyValues
+ * Signature: ()[I
+ */
+JNIEXPORT jintArray JNICALL Java_tester_Tracer_getWaitStrategyValues
+  (JNIEnv *env, jclass) {
+  jint values[] = {waitStrategy.spinIterations.load(), waitStrategy.yieldIterations.load()};
+  jintArray result = env->NewIntArray(2);
+  env->SetIntArrayRegion(result, 0, 2, values);
+  return result;
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    isCpuTimerSupported
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_tester_Tracer_isCpuTimerSupported
+  (JNIEnv *, jclass) {
+  return ThreadCpuTimer::isSupported();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    isPerfEventSupported
+ * Signature: ()Z
+ */
+JNIEXPORT jboolean JNICALL Java_tester_Tracer_isPerfEventSupported
+  (JNIEnv *, jclass) {
+  return ThreadPerfEvent::isSupported();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    startContinuousSampling
+ * Signature: (IZ[IJII)V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_startContinuousSampling
+  (JNIEnv *env, jclass, jint depth, jboolean asgctSig, jintArray asgstSigOptions, jlong intervalNanos,
+   jint bufferCapacity, jint trigger) {
+  SamplingTrigger samplingTrigger = (SamplingTrigger)trigger;
+  if ((samplingTrigger == SamplingTrigger::cpuTimer && !ThreadCpuTimer::isSupported()) ||
+      ((samplingTrigger == SamplingTrigger::perfCpuClock || samplingTrigger == SamplingTrigger::perfTaskClock) &&
+        !ThreadPerfEvent::isSupported())) {
+    samplingTrigger = SamplingTrigger::signalThread;
+  }
+  continuousSampler.start(new ContinuousSettings{std::max(depth, 0),
+    {asgctSig, {}, intArrayToVector(env, asgstSigOptions)}, (size_t)bufferCapacity, intervalNanos,
+    samplingTrigger});
+  // threads that start from now on are added in OnThreadStart
+  threadStateIndex.forEach([](ThreadState *state) { continuousSampler.addThread(state); });
+  continuousSampler.startTrigger();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    stopContinuousSampling
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_stopContinuousSampling
+  (JNIEnv *, jclass) {
+  continuousSampler.stop();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    drainContinuousSamples
+ * Signature: ([J[J[J)[[Ltester/Trace;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_drainContinuousSamples
+  (JNIEnv *env, jclass, jlongArray threadIds, jlongArray carrierThreadIds, jlongArray times) {
+  auto samples = continuousSampler.drain(env, env->GetArrayLength(threadIds));
+  jobjectArray result = env->NewObjectArray(samples.size(), findClass(env, traceArrayClass, "[Ltester/Trace;"), nullptr);
+  for (size_t i = 0; i < samples.size(); i++) {
+    jlong threadId = samples[i].first.javaThreadId;
+    env->SetLongArrayRegion(threadIds, i, 1, &threadId);
+    jlong carrierThreadId = samples[i].first.carrierThreadId;
+    env->SetLongArrayRegion(carrierThreadIds, i, 1, &carrierThreadId);
+    storeSampleTime(env, times, i, samples[i].first.time);
+    env->SetObjectArrayElement(result, i, samples[i].second);
+    env->DeleteLocalRef(samples[i].second);
+  }
+  return result;
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    setSampleBuffer
+ * Signature: (Ljava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_setSampleBuffer
+  (JNIEnv *env, jclass, jobject buffer) {
+  if (buffer == nullptr) {
+    continuousSampler.attachBuffer(nullptr, 0);
+  } else {
+    continuousSampler.attachBuffer((char*)env->GetDirectBufferAddress(buffer),
+      // the written size is returned as an int
+      (size_t)std::min(env->GetDirectBufferCapacity(buffer), (jlong)INT32_MAX));
+  }
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    writeContinuousSamples
+ * Signature: (I)I
+ */
+JNIEXPORT jint JNICALL Java_tester_Tracer_writeContinuousSamples
+  (JNIEnv *, jclass, jint maxSamples) {
+  return (jint)continuousSampler.drainIntoBuffer(std::max(maxSamples, 0));
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getLostContinuousSamples
+ * Signature: ()J
+ */
+JNIEXPORT jlong JNICALL Java_tester_Tracer_getLostContinuousSamples
+  (JNIEnv *, jclass) {
+  return continuousSampler.lost();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getDroppedSampleCounts
+ * Signature: ()[J
+ */
+JNIEXPORT jlongArray JNICALL Java_tester_Tracer_getDroppedSampleCounts
+  (JNIEnv *env, jclass) {
+  jlong values[] = {(jlong)dropCounters.signalFailed.load(), (jlong)dropCounters.timedOut.load(),
+    (jlong)continuousSampler.lost()};
+  jlongArray array = env->NewLongArray(3);
+  env->SetLongArrayRegion(array, 0, 3, values);
+  return array;
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    setWalkRequestTimeout
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_setWalkRequestTimeout
+  (JNIEnv *, jclass, jlong timeoutNanos) {
+  walkRequestTimeoutNanos = timeoutNanos < 0 ? -1 : (long)timeoutNanos;
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    setWalkerThreadCount
+ * Signature: (I)V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_setWalkerThreadCount
+  (JNIEnv *, jclass, jint count) {
+  // at least one walker is needed, as the separate thread walks would block otherwise
+  walkerPool.resize(std::max(count, 1));
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getWalkerThreadCount
+ * Signature: ()I
+ */
+JNIEXPORT jint JNICALL Java_tester_Tracer_getWalkerThreadCount
+  (JNIEnv *, jclass) {
+  return walkerPool.size();
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    setKnownTraceHandles
+ * Signature: (Z)V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_setKnownTraceHandles
+  (JNIEnv *, jclass, jboolean enable) {
+  knownTraces.setEnabled(enable);
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getKnownTrace
+ * Signature: (J)Ltester/Trace;
+ */
+JNIEXPORT jobject JNICALL Java_tester_Tracer_getKnownTrace
+  (JNIEnv *env, jclass, jlong hash) {
+  return knownTraces.get(env, (uint64_t)hash);
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    clearKnownTraces
+ * Signature: ()V
+ */
+JNIEXPORT void JNICALL Java_tester_Tracer_clearKnownTraces
+  (JNIEnv *env, jclass) {
+  knownTraces.clear(env);
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    getMethodIds
+ * Signature: ([J)[Ltester/Frame$MethodId;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_getMethodIds
+  (JNIEnv *env, jclass, jlongArray methodIds) {
+  std::vector<jlong> ids(env->GetArrayLength(methodIds));
+  env->GetLongArrayRegion(methodIds, 0, ids.size(), ids.data());
+  return createMethodIdArray(env, ids.data(), ids.size());
+}
+
+/*
+ * Class:     tester_Tracer
+ * Method:    symbolize
+ * Signature: ([J)[Ltester/Frame$NativeSymbol;
+ */
+JNIEXPORT jobjectArray JNICALL Java_tester_Tracer_symbolize
+  (JNIEnv *env, jclass, jlongArray pcs) {
+  static jclass symbolClass = nullptr;
+  static jmethodID symbolConstructor = nullptr;
+  jclass clazz = findClass(env, symbolClass, "tester/Frame$NativeSymbol");
+  jmethodID constructor = findMethod(env, symbolConstructor, clazz, "<init>", "(Ljava/lang/String;Ljava/lang/String;J)V");
+  jsize count = env->GetArrayLength(pcs);
+  std::vector<jlong> pcValues(count);
+  env->GetLongArrayRegion(pcs, 0, count, pcValues.data());
+  jobjectArray result = env->NewObjectArray(count, clazz, nullptr);
+  for (jsize i = 0; i < count; i++) {
+    auto symbol = symbolResolver.resolve((uintptr_t)pcValues[i]);
+    if (symbol == nullptr) {
       continue;
     }
-    if (hasThreadState(thread)) {
-      threads_vec.push_back(thread);
+    jstring library = env->NewStringUTF(symbol->library.c_str());
+    jstring name = symbol->name.empty() ? nullptr : env->NewStringUTF(symbol->name.c_str());
+    jobject element = env->NewObject(clazz, constructor, library, name, (jlong)symbol->offset);
+    env->SetObjectArrayElement(result, i, element);
+    env->DeleteLocalRef(element);
+    env->DeleteLocalRef(library);
+    if (name != nullptr) {
+      env->DeleteLocalRef(name);
     }
   }
-
-  // store the threads in an array
-  jclass thread = findClass(env, threadClass, "java/lang/Thread");
-  jobjectArray result = env->NewObjectArray(threads_vec.size(), thread, nullptr);
-  for (int i = 0; i < threads_vec.size(); i++) {
-    env->SetObjectArrayElement(result, i, threads_vec.at(i));
-  }
   return result;
-}
\ No newline at end of file
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include <signal.h>
+#include <stdio.h>
+#include <string.h>
+
+#if defined(__linux__)
+#include <fcntl.h>
+#include <linux/perf_event.h>
+#include <sys/ioctl.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+#endif
+
+/**
+ * perf_event_open software clock event on a single thread, the kernel sends SIGPROF to the thread
+ * whenever the event overflowed (every interval of the clock), only supported on Linux.
+ *
+ * The event disables itself after every overflow and has to be re-armed by the signal handler via rearm,
+ * that's what makes the kernel send a signal without an mmapped ring buffer.
+ */
+class ThreadPerfEvent {
+  int fd = -1;
+
+public:
+
+  /**
+   * @param taskClock use PERF_COUNT_SW_TASK_CLOCK instead of PERF_COUNT_SW_CPU_CLOCK
+   */
+  static int open(long osThreadId, long intervalNanos, bool taskClock) {
+#if defined(__linux__)
+    struct perf_event_attr attr;
+    memset(&attr, 0, sizeof(attr));
+    attr.type = PERF_TYPE_SOFTWARE;
+    attr.size = sizeof(attr);
+    attr.config = taskClock ? PERF_COUNT_SW_TASK_CLOCK : PERF_COUNT_SW_CPU_CLOCK;
+    attr.sample_period = intervalNanos;
+    attr.disabled = 1;
+    // allowed without privileges with the default perf_event_paranoid setting
+    attr.exclude_kernel = 1;
+    attr.exclude_hv = 1;
+    return (int)syscall(__NR_perf_event_open, &attr, (pid_t)osThreadId, -1, -1, 0);
+#else
+    return -1;
+#endif
+  }
+
+  /** tries to open an event for the current thread */
+  static bool isSupported() {
+#if defined(__linux__)
+    static int supported = -1;
+    if (supported == -1) {
+      int testFd = open(syscall(SYS_gettid), 1000000000, false);
+      supported = testFd != -1;
+      if (testFd != -1) {
+        close(testFd);
+      }
+    }
+    return supported == 1;
+#else
+    return false;
+#endif
+  }
+
+  /**
+   * @param osThreadId the kernel id of the thread, the clock of this thread is measured and it receives the signals
+   * @return false if the event could not be created
+   */
+  bool start(long osThreadId, long intervalNanos, bool taskClock) {
+    stop();
+#if defined(__linux__)
+    fd = open(osThreadId, intervalNanos, taskClock);
+    if (fd == -1) {
+      perror("perf_event_open");
+      return false;
+    }
+    struct f_owner_ex owner = {F_OWNER_TID, (pid_t)osThreadId};
+    if (fcntl(fd, F_SETFL, O_ASYNC) != 0 || fcntl(fd, F_SETSIG, SIGPROF) != 0 ||
+        fcntl(fd, F_SETOWN_EX, &owner) != 0) {
+      perror("fcntl");
+      stop();
+      return false;
+    }
+    ioctl(fd, PERF_EVENT_IOC_RESET, 0);
+    rearm(fd);
+    return true;
+#else
+    return false;
+#endif
+  }
+
+  void stop() {
+#if defined(__linux__)
+    if (fd != -1) {
+      ioctl(fd, PERF_EVENT_IOC_DISABLE, 0);
+      close(fd);
+    }
+#endif
+    fd = -1;
+  }
+
+  /** is the signal an overflow signal of an event (the event is then disabled), async-signal-safe */
+  static bool isOverflowSignal(siginfo_t *info) {
+#if defined(__linux__)
+    return info != nullptr && info->si_code == POLL_HUP;
+#else
+    return false;
+#endif
+  }
+
+  /** enables the event for the next overflow, async-signal-safe */
+  static void rearm(int eventFd) {
+#if defined(__linux__)
+    ioctl(eventFd, PERF_EVENT_IOC_REFRESH, 1);
+#endif
+  }
+
+  /** re-arms the event of the overflow signal, async-signal-safe */
+  static void rearm(siginfo_t *info) {
+    rearm(info->si_fd);
+  }
+};
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include "helper.hpp"
+#include "jni.h"
+#include "wait.hpp"
+#include <atomic>
+#include <profile.h>
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <time.h>
+
+// ring buffers that signal handlers write raw samples into, see the continuous sampling in jni.cpp
+
+static_assert(sizeof(ASGCT_CallFrame) <= sizeof(ASGST_CallFrame), "ASGCT frames have to fit into ASGST frame slots");
+
+/** header of a single raw trace in a sample, the frames follow directly */
+struct RawTraceHeader {
+  jint num_frames;
+  uint8_t kind;
+  uint8_t state;
+};
+
+/** when a thread was sampled, captured at the start of its signal handler, see Tracer.SampleTime */
+struct SampleTime {
+  /** CLOCK_MONOTONIC */
+  int64_t timestamp;
+  /** CPU time of the sampled thread, -1 if unknown */
+  int64_t threadCpuTime;
+  /** from sending the signal till the signal handler started, -1 if unknown */
+  int64_t signalDelay;
+};
+
+/**
+ * captures the time of a sample of the current thread, async-signal-safe (both clocks are usually read via the vDSO)
+ *
+ * @param signalledAt nanotime when the signal was sent, 0 if unknown
+ */
+inline SampleTime captureSampleTime(long signalledAt) {
+  long now = nanotime();
+  struct timespec ts;
+  long cpuTime = clock_gettime(CLOCK_THREAD_CPUTIME_ID, &ts) == 0 ? ts.tv_sec * 1000000000L + ts.tv_nsec : -1;
+  return {now, cpuTime, signalledAt == 0 ? -1 : now - signalledAt};
+}
+
+/** header of a sample, the raw traces follow directly */
+struct SampleHeader {
+  /** the mounted virtual thread for samples of carrier threads */
+  javaThreadId_t javaThreadId;
+  /** the platform thread that the virtual thread was mounted on, -1 if no virtual thread was mounted */
+  javaThreadId_t carrierThreadId;
+  SampleTime time;
+};
+
+/** view on a sample in a ring buffer */
+class RawSample {
+  char *start;
+  int depth;
+
+  static size_t traceSize(int depth) {
+    return sizeof(ASGST_CallFrame) * (1 + (size_t)depth); // one slot for the header
+  }
+
+  /** the sample header occupies whole frame slots, so that the frames stay aligned */
+  static size_t headerSize() {
+    return (sizeof(SampleHeader) + sizeof(ASGST_CallFrame) - 1) / sizeof(ASGST_CallFrame) * sizeof(ASGST_CallFrame);
+  }
+
+public:
+  RawSample(char *start, int depth) : start(start), depth(depth) {}
+
+  static size_t size(int traceCount, int depth) {
+    return headerSize() + traceCount * traceSize(depth);
+  }
+
+  SampleHeader* header() {
+    return (SampleHeader*)start;
+  }
+
+  RawTraceHeader* traceHeader(int trace) {
+    return (RawTraceHeader*)(start + headerSize() + trace * traceSize(depth));
+  }
+
+  /** frames of the trace, ASGCT traces store ASGCT_CallFrames here */
+  ASGST_CallFrame* frames(int trace) {
+    return (ASGST_CallFrame*)(traceHeader(trace)) + 1;
+  }
+
+  ASGST_CallTrace asgstTrace(int trace) {
+    RawTraceHeader *header = traceHeader(trace);
+    ASGST_CallTrace result;
+    result.num_frames = header->num_frames;
+    result.kind = header->kind;
+    result.state = header->state;
+    result.frames = frames(trace);
+    return result;
+  }
+
+  ASGCT_CallTrace asgctTrace(int trace) {
+    return {nullptr, traceHeader(trace)->num_frames, (ASGCT_CallFrame*)frames(trace)};
+  }
+};
+
+/**
+ * Ring buffer of fixed size samples for a single thread,
+ * the producer is the signal handler of the thread and the consumer the thread that drains the buffer.
+ * Writing never blocks and never allocates, samples are dropped if the buffer is full.
+ */
+class SampleRingBuffer {
+  pthread_t owner_;
+  javaThreadId_t javaThreadId_;
+  size_t capacity_;
+  int traceCount_;
+  int depth_;
+  size_t sampleSize_;
+  char *memory_;
+  // number of written samples
+  std::atomic<uint64_t> head_ = {0};
+  // number of read samples
+  std::atomic<uint64_t> tail_ = {0};
+  std::atomic<uint64_t> lost_ = {0};
+  // the owning thread has ended, nothing is written anymore
+  std::atomic<bool> ended_ = {false};
+  // nanotime when the trigger thread signalled the owner the last time, 0 if never
+  std::atomic<long> signalledAt_ = {0};
+
+public:
+  SampleRingBuffer(pthread_t owner, javaThreadId_t javaThreadId, size_t capacity, int traceCount, int depth) :
+    owner_(owner), javaThreadId_(javaThreadId), capacity_(capacity), traceCount_(traceCount), depth_(depth),
+    sampleSize_(RawSample::size(traceCount, depth)), memory_((char*)calloc(capacity, sampleSize_)) {}
+
+  ~SampleRingBuffer() {
+    free(memory_);
+  }
+
+  SampleRingBuffer(const SampleRingBuffer&) = delete;
+  SampleRingBuffer& operator=(const SampleRingBuffer&) = delete;
+
+  pthread_t owner() const { return owner_; }
+
+  javaThreadId_t javaThreadId() const { return javaThreadId_; }
+
+  int traceCount() const { return traceCount_; }
+
+  int depth() const { return depth_; }
+
+  /** samples that were dropped because the buffer was full */
+  uint64_t lost() const { return lost_; }
+
+  bool ended() const { return ended_; }
+
+  void markEnded() { ended_ = true; }
+
+  /** called by the trigger thread before it signals the owner */
+  void markSignalled(long nanos) { signalledAt_.store(nanos, std::memory_order_relaxed); }
+
+  long signalledAt() const { return signalledAt_.load(std::memory_order_relaxed); }
+
+  bool empty() const { return head_.load() == tail_.load(); }
+
+  /** producer only: the next free sample or null if the buffer is full, async-signal-safe */
+  char* beginWrite() {
+    uint64_t head = head_.load(std::memory_order_relaxed);
+    if (memory_ == nullptr || head - tail_.load(std::memory_order_acquire) >= capacity_) {
+      lost_.fetch_add(1, std::memory_order_relaxed);
+      return nullptr;
+    }
+    return memory_ + (head % capacity_) * sampleSize_;
+  }
+
+  /** producer only: publish the sample obtained by beginWrite */
+  void endWrite() {
+    head_.store(head_.load(std::memory_order_relaxed) + 1, std::memory_order_release);
+  }
+
+  /** consumer only: the oldest sample or null if the buffer is empty */
+  char* peek() {
+    uint64_t tail = tail_.load(std::memory_order_relaxed);
+    if (tail == head_.load(std::memory_order_acquire)) {
+      return nullptr;
+    }
+    return memory_ + (tail % capacity_) * sampleSize_;
+  }
+
+  /** consumer only: free the sample obtained by peek */
+  void pop() {
+    tail_.store(tail_.load(std::memory_order_relaxed) + 1, std::memory_order_release);
+  }
+};
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include "ring_buffer.hpp"
+#include "trace.hpp"
+#include "jni.h"
+#include <profile.h>
+#include <stdint.h>
+
+// writes drained samples into a direct ByteBuffer (see Tracer.attachBuffer), decoded lazily by tester.SampleBuffer,
+// all values are stored in the native byte order:
+//   sample: int32 size of the sample in bytes, int32 trace count, int64 Java thread id,
+//           int64 carrier thread id, int64 timestamp, int64 thread CPU time, int64 signal delay, the traces
+//   trace:  int32 frame count (error code if negative), int8 kind, int8 state, int8 present, int8 unused,
+//           int64 hash, the frames
+//   frame:  int64 method id (pc for non-Java frames), int32 bci, int8 type, int8 compilation level, int16 unused
+
+struct BufferedSampleHeader {
+  int32_t size;
+  int32_t traceCount;
+  int64_t javaThreadId;
+  int64_t carrierThreadId;
+  SampleTime time;
+};
+
+struct BufferedTraceHeader {
+  int32_t numFrames;
+  int8_t kind;
+  int8_t state;
+  // the ASGCT trace is absent if ASGCT is not sampled
+  int8_t present;
+  int8_t unused;
+  uint64_t hash;
+};
+
+struct BufferedFrame {
+  int64_t methodIdOrPc;
+  int32_t bci;
+  int8_t type;
+  int8_t compLevel;
+  int16_t unused;
+};
+
+static_assert(sizeof(BufferedSampleHeader) == 48, "has to match SampleBuffer.SAMPLE_HEADER_SIZE");
+static_assert(sizeof(BufferedTraceHeader) == 16, "has to match SampleBuffer.TRACE_HEADER_SIZE");
+static_assert(sizeof(BufferedFrame) == 16, "has to match SampleBuffer.FRAME_SIZE");
+
+/** copy of the trace without the tracer frames at the top */
+template <typename T> T withoutTracerFrames(T *trace) {
+  int app = countFirstTracerFrames(trace);
+  T copy = *trace;
+  copy.frames += app;
+  copy.num_frames -= app;
+  return copy;
+}
+
+/**
+ * Writes samples from the ring buffers into the attached memory, the memory is overwritten by every drain
+ */
+class SampleBufferWriter {
+  char *start = nullptr;
+  size_t capacity = 0;
+  size_t position = 0;
+  BufferedFrame *nextFrame = nullptr;
+
+  static size_t traceSize(int numFrames) {
+    return sizeof(BufferedTraceHeader) + std::max(numFrames, 0) * sizeof(BufferedFrame);
+  }
+
+  template <typename T> void writeTrace(T *trace, int kind, int state) {
+    BufferedTraceHeader *header = (BufferedTraceHeader*)(start + position);
+    *header = {trace->num_frames, (int8_t)kind, (int8_t)state, 1, 0, hashTrace(trace)};
+    nextFrame = (BufferedFrame*)(header + 1);
+    if (trace->num_frames > 0) {
+      addFrames(*this, trace);
+    }
+    position = (char*)nextFrame - start;
+  }
+
+public:
+
+  /** null detaches the memory */
+  void attach(char *newStart, size_t newCapacity) {
+    start = newStart;
+    capacity = newStart == nullptr ? 0 : newCapacity;
+    position = 0;
+  }
+
+  bool isAttached() const {
+    return start != nullptr;
+  }
+
+  /** start writing from the beginning of the memory again */
+  void reset() {
+    position = 0;
+  }
+
+  /** bytes written since the last reset */
+  size_t size() const {
+    return position;
+  }
+
+  void addJavaFrame(FrameType type, jmethodID method, jint bci, jint compLevel = -2) {
+    *nextFrame++ = {(int64_t)method, bci, (int8_t)type, (int8_t)compLevel, 0};
+  }
+
+  void addNonJavaFrame(void *pc) {
+    *nextFrame++ = {(int64_t)pc, -1, (int8_t)FrameType::cpp, 0, 0};
+  }
+
+  /**
+   * writes the sample (with the same traces as ContinuousSampler::toTraceArray),
+   * returns false if it does not fit into the remaining memory
+   */
+  bool write(RawSample raw, int traceCount) {
+    bool hasASGCT = raw.traceHeader(0)->kind != 0;
+    ASGCT_CallTrace asgctTrace = raw.asgctTrace(0);
+    ASGCT_CallTrace asgct = withoutTracerFrames(&asgctTrace);
+    size_t size = sizeof(BufferedSampleHeader) + traceSize(hasASGCT ? asgct.num_frames : 0);
+    for (int i = 1; i < traceCount; i++) {
+      ASGST_CallTrace asgstTrace = raw.asgstTrace(i);
+      size += traceSize(withoutTracerFrames(&asgstTrace).num_frames);
+    }
+    if (position + size > capacity) {
+      return false;
+    }
+    *(BufferedSampleHeader*)(start + position) = {(int32_t)size, traceCount, raw.header()->javaThreadId,
+      raw.header()->carrierThreadId, raw.header()->time};
+    position += sizeof(BufferedSampleHeader);
+    if (hasASGCT) {
+      writeTrace(&asgct, ASGST_JAVA_TRACE, -1);
+    } else {
+      *(BufferedTraceHeader*)(start + position) = {0, 0, 0, 0, 0, 0};
+      position += sizeof(BufferedTraceHeader);
+    }
+    for (int i = 1; i < traceCount; i++) {
+      ASGST_CallTrace asgstTrace = raw.asgstTrace(i);
+      ASGST_CallTrace asgst = withoutTracerFrames(&asgstTrace);
+      writeTrace(&asgst, asgst.kind, asgst.state);
+    }
+    return true;
+  }
+};
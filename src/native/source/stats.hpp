@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include "wait.hpp"
+#include <algorithm>
+#include <array>
+#include <atomic>
+#include <stdint.h>
+
+// latency histograms of the phases of a sample, see Tracer.getSamplerStats
+
+/**
+ * Lock-free histogram of nanosecond values with HDR-style log-linear buckets (16 sub-buckets per power of two,
+ * so about 6% precision), recording is async-signal-safe
+ */
+class LatencyHistogram {
+  static const int SUB_BUCKET_BITS = 4;
+  static const int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // values up to 2^42 ns (more than an hour) are distinguished, larger ones land in the last bucket
+  static const int MAX_EXPONENT = 42;
+  static const int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+  std::array<std::atomic<uint64_t>, BUCKETS> buckets;
+  std::atomic<uint64_t> count = {0};
+  std::atomic<uint64_t> sum = {0};
+  std::atomic<uint64_t> max = {0};
+
+  static int bucketIndex(uint64_t value) {
+    if (value < SUB_BUCKETS) {
+      return (int)value;
+    }
+    int exponent = 63 - __builtin_clzll(value);
+    if (exponent > MAX_EXPONENT) {
+      return BUCKETS - 1;
+    }
+    int shift = exponent - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int)((value >> shift) & (SUB_BUCKETS - 1));
+  }
+
+  /** largest value of the bucket */
+  static uint64_t bucketMax(int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    int shift = index / SUB_BUCKETS - 1;
+    uint64_t mantissa = SUB_BUCKETS + index % SUB_BUCKETS;
+    return ((mantissa + 1) << shift) - 1;
+  }
+
+public:
+
+  LatencyHistogram() {
+    reset();
+  }
+
+  void record(long nanos) {
+    uint64_t value = (uint64_t)std::max(nanos, 0L);
+    buckets[bucketIndex(value)].fetch_add(1, std::memory_order_relaxed);
+    count.fetch_add(1, std::memory_order_relaxed);
+    sum.fetch_add(value, std::memory_order_relaxed);
+    uint64_t currentMax = max.load(std::memory_order_relaxed);
+    while (value > currentMax && !max.compare_exchange_weak(currentMax, value, std::memory_order_relaxed)) {
+    }
+  }
+
+  /** not atomic with respect to concurrent recordings */
+  void reset() {
+    for (auto &bucket : buckets) {
+      bucket.store(0, std::memory_order_relaxed);
+    }
+    count = 0;
+    sum = 0;
+    max = 0;
+  }
+
+  uint64_t getCount() const { return count; }
+
+  uint64_t getSum() const { return sum; }
+
+  uint64_t getMax() const { return max; }
+
+  /** upper bound of the value at the given quantile (0 to 1), 0 if empty */
+  uint64_t quantile(double q) const {
+    uint64_t total = count;
+    if (total == 0) {
+      return 0;
+    }
+    uint64_t rank = std::max((uint64_t)1, (uint64_t)(q * total + 0.5));
+    uint64_t seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += buckets[i].load(std::memory_order_relaxed);
+      if (seen >= rank) {
+        return std::min(bucketMax(i), getMax());
+      }
+    }
+    return getMax();
+  }
+};
+
+/** phases of the sampling, has to match tester.SamplerStats.Phase */
+enum class SamplerPhase : int {
+  /** from sending the signal till the signal handler starts */
+  signalDelivery = 0,
+  /** the stack walks in the signal handler */
+  signalHandlerWalk = 1,
+  /** from handing the request to the walker threads till a walker starts */
+  walkerHandoff = 2,
+  /** the stack walks of the walker threads */
+  walkerWalk = 3,
+  /** the requester waiting for a walk to finish, from sending the signal */
+  requesterWait = 4,
+  /** creating the Java traces from the raw traces */
+  materialization = 5,
+  /** recording a sample of the continuous sampling in the signal handler */
+  continuousRecord = 6
+};
+
+const int SAMPLER_PHASES = 7;
+
+/** values per phase returned by Tracer.getSamplerStats */
+const int SAMPLER_STATS_VALUES = 7;
+
+class SamplerStats {
+  std::atomic<bool> enabled = {false};
+  std::array<LatencyHistogram, SAMPLER_PHASES> histograms;
+
+public:
+
+  bool isEnabled() const {
+    return enabled.load(std::memory_order_relaxed);
+  }
+
+  void setEnabled(bool value) {
+    enabled = value;
+  }
+
+  /** async-signal-safe */
+  long now() const {
+    return isEnabled() ? nanotime() : 0;
+  }
+
+  /** records the time since start (obtained by now), async-signal-safe */
+  void recordSince(SamplerPhase phase, long start) {
+    if (isEnabled() && start != 0) {
+      histograms[(int)phase].record(nanotime() - start);
+    }
+  }
+
+  void reset() {
+    for (auto &histogram : histograms) {
+      histogram.reset();
+    }
+  }
+
+  /** count, sum, max, p50, p90, p99 and p99.9 of every phase */
+  void write(int64_t *values) const {
+    for (int i = 0; i < SAMPLER_PHASES; i++) {
+      const LatencyHistogram &histogram = histograms[i];
+      int64_t *phaseValues = values + i * SAMPLER_STATS_VALUES;
+      phaseValues[0] = histogram.getCount();
+      phaseValues[1] = histogram.getSum();
+      phaseValues[2] = histogram.getMax();
+      phaseValues[3] = histogram.quantile(0.5);
+      phaseValues[4] = histogram.quantile(0.9);
+      phaseValues[5] = histogram.quantile(0.99);
+      phaseValues[6] = histogram.quantile(0.999);
+    }
+  }
+};
+
+static SamplerStats samplerStats;
+
+/** records the duration of its scope */
+class PhaseTimer {
+  SamplerPhase phase;
+  long start;
+public:
+  PhaseTimer(SamplerPhase phase) : phase(phase), start(samplerStats.now()) {}
+
+  ~PhaseTimer() {
+    samplerStats.recordSince(phase, start);
+  }
+};
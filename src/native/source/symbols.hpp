@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+
+#pragma once
+
+#include <algorithm>
+#include <cxxabi.h>
+#include <dlfcn.h>
+#include <list>
+#include <memory>
+#include <mutex>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <string>
+#include <unordered_map>
+#include <utility>
+#include <vector>
+
+#if defined(__linux__)
+#include <fcntl.h>
+#include <link.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#endif
+
+// resolves the program counters of non-Java frames to library, symbol and offset, see Tracer.symbolize
+
+/** resolved program counter, the name is empty if only the library is known */
+struct NativeSymbol {
+  std::string library;
+  std::string name;
+  uintptr_t offset = 0;
+};
+
+/** demangles C++ names, returns the passed name if it is not mangled */
+inline std::string demangle(const char *name) {
+  int status = 0;
+  char *demangled = abi::__cxa_demangle(name, nullptr, nullptr, &status);
+  if (status != 0 || demangled == nullptr) {
+    return name;
+  }
+  std::string result = demangled;
+  free(demangled);
+  return result;
+}
+
+/**
+ * Function symbols of a single loaded library, read once from the .symtab and .dynsym sections of its ELF file,
+ * so that also the static functions (that dladdr doesn't know) are found
+ */
+class LibrarySymbols {
+
+  struct Entry {
+    uintptr_t start;
+    uintptr_t size;
+    const char *name;
+  };
+
+  // the file stays mapped, as the entries point to its string tables
+  void *mapping = nullptr;
+  size_t mappingSize = 0;
+  // difference between the runtime addresses and the addresses in the file
+  uintptr_t bias = 0;
+  // sorted by start
+  std::vector<Entry> entries;
+
+#if defined(__linux__)
+  bool load(const char *path, uintptr_t base) {
+    int fd = ::open(path, O_RDONLY | O_CLOEXEC);
+    if (fd == -1) {
+      return false;
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || (size_t)st.st_size < sizeof(ElfW(Ehdr))) {
+      close(fd);
+      return false;
+    }
+    void *map = mmap(nullptr, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (map == MAP_FAILED) {
+      return false;
+    }
+    mapping = map;
+    mappingSize = st.st_size;
+    const char *file = (const char*)map;
+    auto *ehdr = (const ElfW(Ehdr)*)file;
+    if (memcmp(ehdr->e_ident, ELFMAG, SELFMAG) != 0 || ehdr->e_shoff == 0 ||
+        ehdr->e_shoff + ehdr->e_shnum * sizeof(ElfW(Shdr)) > mappingSize ||
+        ehdr->e_phoff + ehdr->e_phnum * sizeof(ElfW(Phdr)) > mappingSize) {
+      return false;
+    }
+    // dladdr returns the start of the lowest mapped segment as base
+    auto *phdrs = (const ElfW(Phdr)*)(file + ehdr->e_phoff);
+    uintptr_t lowestVaddr = UINTPTR_MAX;
+    for (int i = 0; i < ehdr->e_phnum; i++) {
+      if (phdrs[i].p_type == PT_LOAD) {
+        lowestVaddr = std::min(lowestVaddr, (uintptr_t)phdrs[i].p_vaddr);
+      }
+    }
+    if (lowestVaddr == UINTPTR_MAX) {
+      return false;
+    }
+    bias = base - (lowestVaddr & ~(uintptr_t)(sysconf(_SC_PAGESIZE) - 1));
+    auto *shdrs = (const ElfW(Shdr)*)(file + ehdr->e_shoff);
+    for (int i = 0; i < ehdr->e_shnum; i++) {
+      const ElfW(Shdr) &section = shdrs[i];
+      if ((section.sh_type != SHT_SYMTAB && section.sh_type != SHT_DYNSYM) || section.sh_link >= ehdr->e_shnum ||
+          section.sh_offset + section.sh_size > mappingSize) {
+        continue;
+      }
+      const ElfW(Shdr) &strings = shdrs[section.sh_link];
+      if (strings.sh_offset + strings.sh_size > mappingSize) {
+        continue;
+      }
+      auto *symbols = (const ElfW(Sym)*)(file + section.sh_offset);
+      size_t count = section.sh_size / sizeof(ElfW(Sym));
+      for (size_t j = 0; j < count; j++) {
+        const ElfW(Sym) &symbol = symbols[j];
+        int type = ELF64_ST_TYPE(symbol.st_info);
+        if ((type != STT_FUNC && type != STT_GNU_IFUNC) || symbol.st_shndx == SHN_UNDEF || symbol.st_value == 0 ||
+            symbol.st_name >= strings.sh_size) {
+          continue;
+        }
+        entries.push_back({(uintptr_t)symbol.st_value, (uintptr_t)symbol.st_size,
+          file + strings.sh_offset + symbol.st_name});
+      }
+    }
+    // the same function might be in both tables
+    std::sort(entries.begin(), entries.end(), [](const Entry &a, const Entry &b) {
+      return a.start < b.start || (a.start == b.start && a.size > b.size);
+    });
+    entries.erase(std::unique(entries.begin(), entries.end(), [](const Entry &a, const Entry &b) {
+      return a.start == b.start;
+    }), entries.end());
+    return true;
+  }
+#endif
+
+public:
+
+  LibrarySymbols(const char *path, uintptr_t base) {
+#if defined(__linux__)
+    if (!load(path, base)) {
+      entries.clear();
+    }
+#endif
+  }
+
+  ~LibrarySymbols() {
+#if defined(__linux__)
+    if (mapping != nullptr) {
+      munmap(mapping, mappingSize);
+    }
+#endif
+  }
+
+  LibrarySymbols(const LibrarySymbols&) = delete;
+  LibrarySymbols& operator=(const LibrarySymbols&) = delete;
+
+  /** finds the function that contains the pc, returns false if there is none */
+  bool lookup(uintptr_t pc, const char **name, uintptr_t *offset) const {
+    uintptr_t address = pc - bias;
+    auto it = std::upper_bound(entries.begin(), entries.end(), address, [](uintptr_t a, const Entry &e) {
+      return a < e.start;
+    });
+    if (it == entries.begin()) {
+      return false;
+    }
+    --it;
+    // symbols without size (e.g. in assembly) cover everything till the next symbol
+    if (it->size != 0 && address >= it->start + it->size) {
+      return false;
+    }
+    *name = it->name;
+    *offset = address - it->start;
+    return true;
+  }
+};
+
+/**
+ * Least recently used cache with a fixed capacity
+ */
+template <typename K, typename V> class LruCache {
+  size_t capacity;
+  // most recently used first
+  std::list<std::pair<K, V>> items;
+  std::unordered_map<K, typename std::list<std::pair<K, V>>::iterator> index;
+
+public:
+  LruCache(size_t capacity) : capacity(capacity) {}
+
+  /** returns null if the key is not cached */
+  V* get(const K &key) {
+    auto it = index.find(key);
+    if (it == index.end()) {
+      return nullptr;
+    }
+    items.splice(items.begin(), items, it->second);
+    return &it->second->second;
+  }
+
+  void put(const K &key, V value) {
+    auto it = index.find(key);
+    if (it != index.end()) {
+      it->second->second = std::move(value);
+      items.splice(items.begin(), items, it->second);
+      return;
+    }
+    items.emplace_front(key, std::move(value));
+    index[key] = items.begin();
+    if (items.size() > capacity) {
+      index.erase(items.back().first);
+      items.pop_back();
+    }
+  }
+
+  size_t size() const { return items.size(); }
+
+  void clear() {
+    items.clear();
+    index.clear();
+  }
+};
+
+/**
+ * Resolves program counters via dladdr and the symbol tables of the libraries,
+ * the libraries are indexed on their first lookup, the resolved pcs are cached.
+ * Not async-signal-safe, only call it outside of signal handlers.
+ */
+class SymbolResolver {
+  std::mutex mutex;
+  // by base address of the library
+  std::unordered_map<uintptr_t, std::unique_ptr<LibrarySymbols>> libraries;
+  LruCache<uintptr_t, std::shared_ptr<NativeSymbol>> cache;
+
+  std::shared_ptr<NativeSymbol> resolveUncached(uintptr_t pc) {
+    Dl_info info;
+    if (dladdr((void*)pc, &info) == 0 || info.dli_fname == nullptr) {
+      return nullptr;
+    }
+    auto symbol = std::make_shared<NativeSymbol>();
+    symbol->library = info.dli_fname;
+    auto &library = libraries[(uintptr_t)info.dli_fbase];
+    if (!library) {
+      library.reset(new LibrarySymbols(info.dli_fname, (uintptr_t)info.dli_fbase));
+    }
+    const char *name = nullptr;
+    uintptr_t offset = 0;
+    if (library->lookup(pc, &name, &offset)) {
+      symbol->name = demangle(name);
+      symbol->offset = offset;
+    } else if (info.dli_sname != nullptr) {
+      symbol->name = demangle(info.dli_sname);
+      symbol->offset = pc - (uintptr_t)info.dli_saddr;
+    } else {
+      symbol->offset = pc - (uintptr_t)info.dli_fbase;
+    }
+    return symbol;
+  }
+
+public:
+
+  SymbolResolver(size_t cacheCapacity = 16384) : cache(cacheCapacity) {}
+
+  /** returns null if the pc is not part of any loaded library (e.g. in generated code) */
+  std::shared_ptr<NativeSymbol> resolve(uintptr_t pc) {
+    std::lock_guard<std::mutex> lock(mutex);
+    auto *cached = cache.get(pc);
+    if (cached != nullptr) {
+      return *cached;
+    }
+    auto symbol = resolveUncached(pc);
+    cache.put(pc, symbol);
+    return symbol;
+  }
+
+  /** drop the cached pcs and library indexes, e.g. after libraries have been unloaded */
+  void clear() {
+    std::lock_guard<std::mutex> lock(mutex);
+    cache.clear();
+    libraries.clear();
+  }
+};
+
+static SymbolResolver symbolResolver;
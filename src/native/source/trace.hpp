@@ -25,31 +25,171 @@
 #pragma once
 
 #include "helper.hpp"
+#include "stats.hpp"
 #include "jni.h"
 #include "jvmti.h"
 #include <profile.h>
 #include <unordered_map>
+#include <atomic>
 #include <iostream>
+#include <mutex>
+#include <stdint.h>
 
 // helps to create Java Trace objects
 
 static jclass methodIdClass = nullptr;
 static jmethodID methodIdClassConstructor = nullptr;
-static jclass frameBaseClass = nullptr;
-static jclass javaFrameClass = nullptr;
-static jmethodID createASGCTJavaFrameMethod = nullptr;
-static jmethodID createASGCTNativeFrameMethod = nullptr;
-static jmethodID createGSTNativeFrameMethod = nullptr;
-static jmethodID createGSTJavaFrameMethod = nullptr;
 static jclass javaTraceClass = nullptr;
 static jmethodID javaTraceClassConstructor = nullptr;
 static jmethodID javaTraceClassErrorConstructor = nullptr;
-static jmethodID javaFrameClassConstructor = nullptr;
-static jclass nonJavaFrameClass = nullptr;
-static jmethodID nonJavaFrameClassConstructor = nullptr;
+
+// 64 bit hashes of the raw frames, equal traces (as created by createTrace) have equal hashes
+
+/** finalizer of splitmix64 */
+inline uint64_t mixHash(uint64_t value) {
+  value ^= value >> 30;
+  value *= 0xbf58476d1ce4e5b9ULL;
+  value ^= value >> 27;
+  value *= 0x94d049bb133111ebULL;
+  return value ^ (value >> 31);
+}
+
+inline uint64_t combineHash(uint64_t hash, uint64_t value) {
+  return (hash ^ mixHash(value)) * 0x100000001b3ULL;
+}
+
+/** seeds, so that traces of different APIs (which are materialized differently) have different hashes */
+enum class TraceSource : uint64_t { asgct = 1, gst = 2, asgst = 3 };
+
+uint64_t hashTrace(ASGCT_CallTrace *trace) {
+  uint64_t hash = combineHash((uint64_t)TraceSource::asgct, (uint64_t)(int64_t)trace->num_frames);
+  for (int i = 0; i < trace->num_frames; i++) {
+    hash = combineHash(hash, (uint64_t)trace->frames[i].method_id);
+    hash = combineHash(hash, (uint64_t)(int64_t)trace->frames[i].lineno);
+  }
+  return hash;
+}
+
+uint64_t hashTrace(jvmtiFrameInfo *frames, int length) {
+  uint64_t hash = combineHash((uint64_t)TraceSource::gst, (uint64_t)(int64_t)length);
+  for (int i = 0; i < length; i++) {
+    hash = combineHash(hash, (uint64_t)frames[i].method);
+    hash = combineHash(hash, (uint64_t)frames[i].location);
+  }
+  return hash;
+}
+
+uint64_t hashTrace(ASGST_CallTrace *trace) {
+  uint64_t hash = combineHash((uint64_t)TraceSource::asgst, (uint64_t)(int64_t)trace->num_frames);
+  hash = combineHash(hash, ((uint64_t)trace->kind << 8) | trace->state);
+  for (int i = 0; i < trace->num_frames; i++) {
+    ASGST_CallFrame *frame = &trace->frames[i];
+    if (frame->type == ASGST_FRAME_CPP) {
+      hash = combineHash(hash, (uint64_t)frame->type);
+      hash = combineHash(hash, (uint64_t)((ASGST_NonJavaFrame*)frame)->pc);
+    } else {
+      ASGST_JavaFrame *javaFrame = (ASGST_JavaFrame*)frame;
+      hash = combineHash(hash, ((uint64_t)javaFrame->type << 40) | ((uint64_t)(uint8_t)javaFrame->comp_level << 32) |
+        javaFrame->bci);
+      hash = combineHash(hash, (uint64_t)javaFrame->method_id);
+    }
+  }
+  return hash;
+}
+
+/** maximum estimated Java heap usage of the traces that are kept for the known trace handles */
+const size_t MAX_KNOWN_TRACE_BYTES = 64 * 1024 * 1024;
+
+/** rough estimate of the Java heap usage of a materialized trace (object and frame columns) */
+inline size_t estimateTraceBytes(int frames) {
+  return 128 + 32 * (size_t)std::max(frames, 0);
+}
+
+/** are known trace handles returned to the current thread, see Tracer.setKnownTraceHandles */
+static thread_local bool knownTraceHandlesEnabled = false;
+
+/**
+ * The first materialized trace for every hash, used to return "same as" handles
+ * instead of materializing traces again, see Tracer.setKnownTraceHandles.
+ * Entries are never evicted, only removed by clear, traces are not stored anymore once
+ * MAX_KNOWN_TRACE_BYTES is reached.
+ */
+class KnownTraces {
+  std::mutex mutex;
+  std::unordered_map<uint64_t, jobject> traces;
+  size_t bytes = 0;
+
+public:
+
+  /** for the current thread only, so that other users of the tracer are not affected */
+  bool isEnabled() {
+    return knownTraceHandlesEnabled;
+  }
+
+  void setEnabled(bool enable) {
+    knownTraceHandlesEnabled = enable;
+  }
+
+  bool contains(uint64_t hash) {
+    std::lock_guard<std::mutex> lock(mutex);
+    return traces.find(hash) != traces.end();
+  }
+
+  /** stores a global reference to the trace with the passed number of frames, if there is still space */
+  void add(JNIEnv *env, uint64_t hash, jobject trace, int frames) {
+    std::lock_guard<std::mutex> lock(mutex);
+    size_t size = estimateTraceBytes(frames);
+    if (trace != nullptr && bytes + size <= MAX_KNOWN_TRACE_BYTES && traces.find(hash) == traces.end()) {
+      traces[hash] = env->NewGlobalRef(trace);
+      bytes += size;
+    }
+  }
+
+  /** returns a local reference to the trace or null */
+  jobject get(JNIEnv *env, uint64_t hash) {
+    std::lock_guard<std::mutex> lock(mutex);
+    auto it = traces.find(hash);
+    return it == traces.end() ? nullptr : env->NewLocalRef(it->second);
+  }
+
+  void clear(JNIEnv *env) {
+    std::lock_guard<std::mutex> lock(mutex);
+    for (auto &entry : traces) {
+      env->DeleteGlobalRef(entry.second);
+    }
+    traces.clear();
+    bytes = 0;
+  }
+};
+
+static KnownTraces knownTraces;
+
+static jmethodID javaTraceClassHandleConstructor = nullptr;
+
+/** creates a handle for an already known trace */
+jobject createKnownTraceHandle(JNIEnv *env, uint64_t hash) {
+  jclass clazz = findClass(env, javaTraceClass, "tester/Trace");
+  jmethodID constructor = findMethod(env, javaTraceClassHandleConstructor, clazz, "<init>", "(J)V");
+  return env->NewObject(clazz, constructor, (jlong)hash);
+}
+
+/** returns a handle if the trace is already known, or materializes the trace with the passed number of frames
+ * via the passed function */
+template <typename F> jobject createTraceOrHandle(JNIEnv *env, uint64_t hash, int frames, F create) {
+  PhaseTimer timer(SamplerPhase::materialization);
+  if (!knownTraces.isEnabled()) {
+    return create();
+  }
+  if (knownTraces.contains(hash)) {
+    return createKnownTraceHandle(env, hash);
+  }
+  jobject trace = create();
+  knownTraces.add(env, hash, trace, frames);
+  return trace;
+}
 
 // create a Java MethodId object
-jobject createMethodId(JNIEnv *env, jmethodID methodId) {
+jobject createMethodIdUncached(JNIEnv *env, jmethodID methodId, jclass declaringClass) {
   jclass clazz = findClass(env, methodIdClass, "tester/Frame$MethodId");
 
   jmethodID constructor = findMethod(env, methodIdClassConstructor, clazz, "<init>", "(JLjava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
@@ -57,55 +197,255 @@ jobject createMethodId(JNIEnv *env, jmethodID methodId) {
   JvmtiDeallocator<char*> signature;
   JvmtiDeallocator<char*> className;
   ensureSuccess(jvmti->GetMethodName(methodId, name.get_addr(), signature.get_addr(), nullptr), "method name");
-  jclass declaringClass;
-  ensureSuccess(jvmti->GetMethodDeclaringClass(methodId, &declaringClass), "declaring class");
   ensureSuccess(jvmti->GetClassSignature(declaringClass, className.get_addr(), nullptr), "class signature");
 
   // create the method object
   return env->NewObject(clazz, constructor, (jlong) methodId, env->NewStringUTF(className.get()),  env->NewStringUTF(name.get()), env->NewStringUTF(signature.get()));
 }
 
-jobject createASGCTJavaFrame(JNIEnv *env, jmethodID method_id, int bci) {
-  jclass clazz = findClass(env, javaFrameClass, "tester/Frame$JavaFrame");
-  jmethodID constructor = findMethod(env, createASGCTJavaFrameMethod, clazz, "createASGCTJavaFrame", "(Ltester/Frame$MethodId;I)Ltester/Frame$JavaFrame;", true);
-  jobject methodId = createMethodId(env, method_id);
-  return env->CallStaticObjectMethod(clazz, constructor, methodId, bci);
-}
+/**
+ * Global references to the MethodId objects by jmethodID, so that every method is only materialized once.
+ * Entries of unloaded classes are purged after a class unload event or, if these events are not available,
+ * checked on every lookup.
+ */
+class MethodIdCache {
+  struct Entry {
+    jobject methodId;
+    // weak reference to the declaring class, cleared when the class is unloaded
+    jweak declaringClass;
+  };
+
+  std::mutex mutex;
+  std::unordered_map<jmethodID, Entry> entries;
+  std::atomic<bool> unloadEventsAvailable = {false};
+  std::atomic<bool> purgeRequested = {false};
+
+  bool isUnloaded(JNIEnv *env, const Entry &entry) {
+    return env->IsSameObject(entry.declaringClass, nullptr);
+  }
+
+  void remove(JNIEnv *env, std::unordered_map<jmethodID, Entry>::iterator it) {
+    env->DeleteGlobalRef(it->second.methodId);
+    env->DeleteWeakGlobalRef(it->second.declaringClass);
+    entries.erase(it);
+  }
+
+  void purgeUnloaded(JNIEnv *env) {
+    for (auto it = entries.begin(); it != entries.end();) {
+      auto current = it++;
+      if (isUnloaded(env, current->second)) {
+        remove(env, current);
+      }
+    }
+  }
+
+public:
+
+  /** returns a local reference to the MethodId object */
+  jobject get(JNIEnv *env, jmethodID methodId) {
+    std::lock_guard<std::mutex> lock(mutex);
+    if (purgeRequested.exchange(false)) {
+      purgeUnloaded(env);
+    }
+    auto it = entries.find(methodId);
+    if (it != entries.end()) {
+      if (unloadEventsAvailable || !isUnloaded(env, it->second)) {
+        return env->NewLocalRef(it->second.methodId);
+      }
+      remove(env, it);
+    }
+    jclass declaringClass;
+    ensureSuccess(jvmti->GetMethodDeclaringClass(methodId, &declaringClass), "declaring class");
+    jobject object = createMethodIdUncached(env, methodId, declaringClass);
+    entries[methodId] = {env->NewGlobalRef(object), env->NewWeakGlobalRef(declaringClass)};
+    env->DeleteLocalRef(declaringClass);
+    return object;
+  }
+
+  /** classes have been unloaded, purge their entries on the next access, safe to call at any time */
+  void onClassUnload() {
+    purgeRequested = true;
+  }
 
-jobject createASGCTNativeFrame(JNIEnv *env, jmethodID method_id) {
-  jclass clazz = findClass(env, javaFrameClass, "tester/Frame$JavaFrame");
-  jmethodID constructor = findMethod(env, createASGCTNativeFrameMethod, clazz, "createASGCTNativeFrame", "(Ltester/Frame$MethodId;)Ltester/Frame$JavaFrame;", true);
-  jobject methodId = createMethodId(env, method_id);
-  return env->CallStaticObjectMethod(clazz, constructor, methodId);
+  void setUnloadEventsAvailable() {
+    unloadEventsAvailable = true;
+  }
+
+  void clear(JNIEnv *env) {
+    std::lock_guard<std::mutex> lock(mutex);
+    while (!entries.empty()) {
+      remove(env, entries.begin());
+    }
+  }
+};
+
+static MethodIdCache methodIdCache;
+
+jobject createMethodId(JNIEnv *env, jmethodID methodId) {
+  return methodIdCache.get(env, methodId);
 }
 
-jobject createGSTJavaFrame(JNIEnv *env, jmethodID method_id, int bci) {
-  jclass clazz = findClass(env, javaFrameClass, "tester/Frame$JavaFrame");
-  jmethodID constructor = findMethod(env, createGSTJavaFrameMethod, clazz, "createGSTJavaFrame", "(Ltester/Frame$MethodId;I)Ltester/Frame$JavaFrame;", true);
-  jobject methodId = createMethodId(env, method_id);
-  return env->CallStaticObjectMethod(clazz, constructor, methodId, bci);
+/**
+ * MethodId objects for the passed jmethodIDs, null for 0 (non-Java frames) and for methods
+ * that are not available anymore, their number is stored in unresolved if passed
+ */
+jobjectArray createMethodIdArray(JNIEnv *env, const jlong *methodIds, jsize length, jsize *unresolved = nullptr) {
+  jclass clazz = findClass(env, methodIdClass, "tester/Frame$MethodId");
+  jobjectArray array = env->NewObjectArray(length, clazz, nullptr);
+  jsize missing = 0;
+  for (jsize i = 0; i < length; i++) {
+    if (methodIds[i] == 0) {
+      missing++;
+      continue;
+    }
+    try {
+      jobject methodId = createMethodId(env, (jmethodID)methodIds[i]);
+      env->SetObjectArrayElement(array, i, methodId);
+      env->DeleteLocalRef(methodId);
+    } catch (const std::runtime_error &e) {
+      // e.g. the class has been unloaded
+      missing++;
+    }
+  }
+  if (unresolved != nullptr) {
+    *unresolved = missing;
+  }
+  return array;
 }
 
-jobject createGSTNativeFrame(JNIEnv *env, jmethodID method_id) {
-  jclass clazz = findClass(env, javaFrameClass, "tester/Frame$JavaFrame");
-  jmethodID constructor = findMethod(env, createGSTNativeFrameMethod, clazz, "createGSTNativeFrame", "(Ltester/Frame$MethodId;)Ltester/Frame$JavaFrame;", true);
-  jobject methodId = createMethodId(env, method_id);
-  return env->CallStaticObjectMethod(clazz, constructor, methodId);
+/** frame types of tester.Frame */
+enum class FrameType : int8_t {
+  java = 1, javaInlined = 2, native = 3, cpp = 4, asgct = -1, asgctNative = -2, gst = -3, gstNative = -4
+};
+
+jobject createErrorTrace(JNIEnv *env, jint kind, jint state, jint errorCode, uint64_t hash) {
+  jclass clazz = findClass(env, javaTraceClass, "tester/Trace");
+  jmethodID constructor = findMethod(env, javaTraceClassErrorConstructor, clazz, "<init>", "(IIIJ)V");
+  return env->NewObject(clazz, constructor, kind, state, errorCode, (jlong)hash);
 }
 
-jobject createJavaFrame(JNIEnv *env, ASGCT_CallFrame *frame) {
-  if (frame->lineno == -3) {
-    return createASGCTNativeFrame(env, frame->method_id);
+/** error code of traces with a Java frame whose method can't be resolved */
+const jint UNRESOLVED_METHOD_ERROR = -100;
+
+/**
+ * Collects the frames of a trace column-wise and creates a Trace backed by primitive arrays
+ * (see tester.ColumnarFrames) with a few JNI calls, the Frame objects are created lazily in Java.
+ * The methods are resolved when the trace is built, while they are guaranteed to be loaded,
+ * every distinct method only once: the frames store the index of their method.
+ */
+class ColumnarTraceBuilder {
+  // index into distinctMethodIds, -1 for non-Java frames
+  std::vector<jint> methodIndexes;
+  std::vector<jlong> distinctMethodIds;
+  std::unordered_map<jlong, jint> methodIndexById;
+  std::vector<jint> bcis;
+  std::vector<jbyte> types;
+  std::vector<jbyte> compLevels;
+  std::vector<jlong> pcs;
+
+  template <typename T, typename A> A toArray(JNIEnv *env, std::vector<T> &values, A (JNIEnv::*create)(jsize),
+      void (JNIEnv::*set)(A, jsize, jsize, const T*)) {
+    A array = (env->*create)(values.size());
+    (env->*set)(array, 0, values.size(), values.data());
+    return array;
+  }
+
+  jint methodIndex(jmethodID method) {
+    auto inserted = methodIndexById.emplace((jlong)method, (jint)distinctMethodIds.size());
+    if (inserted.second) {
+      distinctMethodIds.push_back((jlong)method);
+    }
+    return inserted.first->second;
+  }
+
+public:
+
+  /** clear the collected frames, keeping the allocated memory */
+  void clear() {
+    methodIndexes.clear();
+    distinctMethodIds.clear();
+    methodIndexById.clear();
+    bcis.clear();
+    types.clear();
+    compLevels.clear();
+    pcs.clear();
+  }
+
+  void addJavaFrame(FrameType type, jmethodID method, jint bci, jint compLevel = -2) {
+    methodIndexes.push_back(methodIndex(method));
+    bcis.push_back(bci);
+    types.push_back((jbyte)type);
+    compLevels.push_back((jbyte)compLevel);
+    pcs.push_back(0);
+  }
+
+  void addNonJavaFrame(void *pc) {
+    methodIndexes.push_back(-1);
+    bcis.push_back(-1);
+    types.push_back((jbyte)FrameType::cpp);
+    compLevels.push_back(0);
+    pcs.push_back((jlong)pc);
+  }
+
+  /**
+   * creates the trace, or an error trace (UNRESOLVED_METHOD_ERROR) if the method of a Java frame is null
+   * (e.g. ASGCT for a class that isn't primed) or can't be resolved (e.g. its class has been unloaded)
+   */
+  jobject build(JNIEnv *env, jint kind, jint state, uint64_t hash) {
+    jsize unresolved;
+    jobjectArray methodArray = createMethodIdArray(env, distinctMethodIds.data(), distinctMethodIds.size(),
+      &unresolved);
+    if (unresolved > 0) {
+      env->DeleteLocalRef(methodArray);
+      return createErrorTrace(env, kind, state, UNRESOLVED_METHOD_ERROR, hash);
+    }
+    jclass clazz = findClass(env, javaTraceClass, "tester/Trace");
+    jmethodID constructor = findMethod(env, javaTraceClassConstructor, clazz, "<init>",
+      "(IIJ[I[Ltester/Frame$MethodId;[I[B[B[J)V");
+    jintArray methodIndexArray = toArray(env, methodIndexes, &JNIEnv::NewIntArray, &JNIEnv::SetIntArrayRegion);
+    jintArray bciArray = toArray(env, bcis, &JNIEnv::NewIntArray, &JNIEnv::SetIntArrayRegion);
+    jbyteArray typeArray = toArray(env, types, &JNIEnv::NewByteArray, &JNIEnv::SetByteArrayRegion);
+    jbyteArray compLevelArray = toArray(env, compLevels, &JNIEnv::NewByteArray, &JNIEnv::SetByteArrayRegion);
+    jlongArray pcArray = toArray(env, pcs, &JNIEnv::NewLongArray, &JNIEnv::SetLongArrayRegion);
+    jobject trace = env->NewObject(clazz, constructor, kind, state, (jlong)hash, methodIndexArray, methodArray,
+      bciArray, typeArray, compLevelArray, pcArray);
+    env->DeleteLocalRef(methodIndexArray);
+    env->DeleteLocalRef(bciArray);
+    env->DeleteLocalRef(typeArray);
+    env->DeleteLocalRef(compLevelArray);
+    env->DeleteLocalRef(pcArray);
+    env->DeleteLocalRef(methodArray);
+    return trace;
   }
-  return createASGCTJavaFrame(env, frame->method_id, frame->lineno);
+};
+
+/** builder of the current thread, reused to avoid allocations */
+ColumnarTraceBuilder& columnarTraceBuilder() {
+  static thread_local ColumnarTraceBuilder builder;
+  builder.clear();
+  return builder;
 }
 
-int countDiscardedFirstFrames(std::function<jmethodID(int)> getMethodId, int length) {
+/**
+ * the tracer frames are the top frames, so the scan stops after this many Java frames
+ * without a tracer frame (lambdas and helpers might be called between tracer frames),
+ * non-Java frames (null method ids) are not counted, as there can be many of them
+ */
+const int MAX_TRACER_FRAME_GAP = 16;
+
+template <typename F> int countDiscardedFirstFrames(F getMethodId, int length) {
   int last = -1;
-  for (int i = 0; i < length; i++) {
+  int gap = 0;
+  for (int i = 0; i < length && gap < MAX_TRACER_FRAME_GAP; i++) {
     jmethodID methodId = getMethodId(i);
-    if (methodId != nullptr && isTracerMethod(methodId)) {
-        last = i;
+    if (methodId == nullptr) {
+      continue;
+    }
+    if (isTracerMethod(methodId)) {
+      last = i;
+      gap = 0;
+    } else {
+      gap++;
     }
   }
   return last + 1;
@@ -115,95 +455,62 @@ int countFirstTracerFrames(ASGCT_CallTrace *trace) {
   return countDiscardedFirstFrames([&](int i) { return trace->frames[i].method_id; }, trace->num_frames);
 }
 
-jobject createTrace(JNIEnv *env, ASGCT_CallTrace *trace) {
-  try {
-    jclass clazz = findClass(env, javaTraceClass, "tester/Trace");
-    if (trace->num_frames < 0) {
-      jmethodID constructor = findMethod(env, javaTraceClassErrorConstructor, clazz, "<init>", "(III)V");
-      return env->NewObject(clazz, constructor, ASGST_JAVA_TRACE, -1, trace->num_frames);
+/** passes the frames to the builder (addJavaFrame and addNonJavaFrame, see ColumnarTraceBuilder) */
+template <typename B> void addFrames(B &builder, ASGCT_CallTrace *trace) {
+  for (int i = 0; i < trace->num_frames; i++) {
+    ASGCT_CallFrame *frame = &trace->frames[i];
+    if (frame->lineno == -3) {
+      builder.addJavaFrame(FrameType::asgctNative, frame->method_id, -1);
+    } else {
+      builder.addJavaFrame(FrameType::asgct, frame->method_id, frame->lineno);
     }
-    try {
-      jmethodID constructor = findMethod(env, javaTraceClassConstructor, clazz, "<init>", "(II[Ltester/Frame;)V");
-      jobjectArray frames = env->NewObjectArray(trace->num_frames, findClass(env, javaFrameClass, "tester/Frame$JavaFrame"), nullptr);
-      for (int i = 0; i < trace->num_frames; i++) {
-        env->SetObjectArrayElement(frames, i, createJavaFrame(env, &trace->frames[i]));
-      }
-      return env->NewObject(clazz, constructor, ASGST_JAVA_TRACE, -1, frames);
-    } catch (const std::runtime_error &e) {
-      std::cerr << "Exception in createTrace: " << e.what() << std::endl;
-      jmethodID constructor = findMethod(env, javaTraceClassErrorConstructor, clazz, "<init>", "(III)V");
-      return env->NewObject(clazz, constructor, ASGST_JAVA_TRACE, -100);
-    }
-  } catch (std::runtime_error &e) {
-    std::cerr << "Exception in createTrace: " << e.what() << std::endl;
-    return nullptr;
   }
 }
 
+jobject createTrace(JNIEnv *env, ASGCT_CallTrace *trace, uint64_t hash) {
+  if (trace->num_frames < 0) {
+    return createErrorTrace(env, ASGST_JAVA_TRACE, -1, trace->num_frames, hash);
+  }
+  ColumnarTraceBuilder &builder = columnarTraceBuilder();
+  addFrames(builder, trace);
+  return builder.build(env, ASGST_JAVA_TRACE, -1, hash);
+}
+
 jobject createTraceWithoutTracerFrames(JNIEnv *env, ASGCT_CallTrace *trace) {
   int app = countFirstTracerFrames(trace);
   ASGCT_CallTrace copy = *trace;
   copy.frames += app;
   copy.num_frames -= app;
-  return createTrace(env, &copy);
-}
-
-jobject createJavaFrame(JNIEnv *env, jvmtiFrameInfo *frame) {
-  if (frame->location == -1) {
-    return createGSTNativeFrame(env, frame->method);
-  }
-  return createGSTJavaFrame(env, frame->method, frame->location);
+  uint64_t hash = hashTrace(&copy);
+  return createTraceOrHandle(env, hash, copy.num_frames, [&]() { return createTrace(env, &copy, hash); });
 }
 
 int countFirstTracerFrames(jvmtiFrameInfo *frame, int length) {
   return countDiscardedFirstFrames([&](int i) { return frame[i].method; }, length);
 }
 
-jobject createTrace(JNIEnv *env, jvmtiFrameInfo *frame, int length) {
-  try {
-    jclass clazz = findClass(env, javaTraceClass, "tester/Trace");
-    jmethodID constructor = findMethod(env, javaTraceClassConstructor, clazz, "<init>", "(II[Ltester/Frame;)V");
-    jobjectArray frames = env->NewObjectArray(length, findClass(env, javaFrameClass, "tester/Frame$JavaFrame"), nullptr);
-    for (int i = 0; i < length; i++) {
-      env->SetObjectArrayElement(frames, i, createJavaFrame(env, frame + i));
+template <typename B> void addFrames(B &builder, jvmtiFrameInfo *frame, int length) {
+  for (int i = 0; i < length; i++) {
+    if (frame[i].location == -1) {
+      builder.addJavaFrame(FrameType::gstNative, frame[i].method, -1);
+    } else {
+      builder.addJavaFrame(FrameType::gst, frame[i].method, frame[i].location);
     }
-    return env->NewObject(clazz, constructor, ASGST_JAVA_TRACE, -1, frames);
-  } catch (std::runtime_error &e) {
-    std::cerr << "Exception in createTrace: " << e.what() << std::endl;
-    return nullptr;
   }
 }
 
-jobject createTraceWithoutTracerFrames(JNIEnv *env, jvmtiFrameInfo *frame, int length) {
-  int app = countFirstTracerFrames(frame, length);
-  return createTrace(env, frame + app, length - app);
-}
-
-jobject createJavaFrame(JNIEnv *env, ASGST_JavaFrame *frame) {
-  jclass frameClass = findClass(env, javaFrameClass, "tester/Frame$JavaFrame");
-  jmethodID frameConstructor = findMethod(env, javaFrameClassConstructor, frameClass, "<init>", "(IIILtester/Frame$MethodId;)V");
-  jobject methodId = createMethodId(env, frame->method_id);
-  return env->NewObject(frameClass, frameConstructor, frame->type, frame->comp_level, frame->bci == 65535 ? -1 : frame->bci, methodId);
-}
-
-jobject createNonJavaFrame(JNIEnv *env, ASGST_NonJavaFrame *frame) {
-  jclass frameClass = findClass(env, nonJavaFrameClass, "tester/Frame$NonJavaFrame");
-  jmethodID frameConstructor = findMethod(env, nonJavaFrameClassConstructor, frameClass, "<init>", "(J)V");
-  return env->NewObject(frameClass, frameConstructor, frame->pc);
+jobject createTrace(JNIEnv *env, jvmtiFrameInfo *frame, int length, uint64_t hash) {
+  ColumnarTraceBuilder &builder = columnarTraceBuilder();
+  addFrames(builder, frame, length);
+  return builder.build(env, ASGST_JAVA_TRACE, -1, hash);
 }
 
-jobject createFrame(JNIEnv *env, ASGST_CallFrame *frame) {
-  switch (frame->type) {
-    case ASGST_FRAME_JAVA:
-    case ASGST_FRAME_NATIVE:
-    case ASGST_FRAME_JAVA_INLINED:
-      return createJavaFrame(env, (ASGST_JavaFrame*) frame);
-    case ASGST_FRAME_CPP:
-      return createNonJavaFrame(env, (ASGST_NonJavaFrame*) frame);
-    default:
-      fprintf(stderr, "Error: unknown frame type %d\n", frame->type);
-      exit(1);
-  }
+jobject createTraceWithoutTracerFrames(JNIEnv *env, jvmtiFrameInfo *frame, int length) {
+  int app = countFirstTracerFrames(frame, length);
+  uint64_t hash = hashTrace(frame + app, length - app);
+  return createTraceOrHandle(env, hash, length - app, [&]() {
+    return createTrace(env, frame + app, length - app, hash);
+  });
 }
 
 bool isJavaFrame(ASGST_CallFrame *frame) {
@@ -224,31 +531,43 @@ int countFirstTracerFrames(ASGST_CallTrace *trace) {
     }, trace->num_frames);
 }
 
-jobject createTrace(JNIEnv *env, ASGST_CallTrace *trace) {
-  try {
-    jclass clazz = findClass(env, javaTraceClass, "tester/Trace");
-    if (trace->num_frames < 0) {
-      jmethodID constructor = findMethod(env, javaTraceClassErrorConstructor, clazz, "<init>", "(III)V");
-      return env->NewObject(clazz, constructor, trace->kind, trace->state, trace->num_frames);
-    }
-    jmethodID constructor = findMethod(env, javaTraceClassConstructor, clazz, "<init>", "(II[Ltester/Frame;)V");
-    jobjectArray frames = env->NewObjectArray(trace->num_frames, findClass(env, frameBaseClass, "tester/Frame"), nullptr);
-    for (int i = 0; i < trace->num_frames; i++) {
-      auto f = createFrame(env, &trace->frames[i]);
-      env->SetObjectArrayElement(frames, i, f);
+template <typename B> void addFrames(B &builder, ASGST_CallTrace *trace) {
+  for (int i = 0; i < trace->num_frames; i++) {
+    ASGST_CallFrame *frame = &trace->frames[i];
+    switch (frame->type) {
+      case ASGST_FRAME_JAVA:
+      case ASGST_FRAME_NATIVE:
+      case ASGST_FRAME_JAVA_INLINED: {
+        ASGST_JavaFrame *javaFrame = (ASGST_JavaFrame*) frame;
+        builder.addJavaFrame((FrameType)javaFrame->type, javaFrame->method_id,
+          javaFrame->bci == 65535 ? -1 : javaFrame->bci, javaFrame->comp_level);
+        break;
+      }
+      case ASGST_FRAME_CPP:
+        builder.addNonJavaFrame(((ASGST_NonJavaFrame*) frame)->pc);
+        break;
+      default:
+        fprintf(stderr, "Error: unknown frame type %d\n", frame->type);
+        exit(1);
     }
-    return env->NewObject(clazz, constructor, trace->kind, trace->state, frames);
-  } catch (std::runtime_error &e) {
-    std::cerr << "Exception in createTrace: " << e.what() << std::endl;
-    return nullptr;
   }
 }
 
+jobject createTrace(JNIEnv *env, ASGST_CallTrace *trace, uint64_t hash) {
+  if (trace->num_frames < 0) {
+    return createErrorTrace(env, trace->kind, trace->state, trace->num_frames, hash);
+  }
+  ColumnarTraceBuilder &builder = columnarTraceBuilder();
+  addFrames(builder, trace);
+  return builder.build(env, trace->kind, trace->state, hash);
+}
+
 jobject createTraceWithoutTracerFrames(JNIEnv *env, ASGST_CallTrace *trace) {
   int app = countFirstTracerFrames(trace);
   ASGST_CallTrace copy = *trace;
   copy.frames += app;
   copy.num_frames -= app;
-  return createTrace(env, &copy);
+  uint64_t hash = hashTrace(&copy);
+  return createTraceOrHandle(env, hash, copy.num_frames, [&]() { return createTrace(env, &copy, hash); });
 }
 
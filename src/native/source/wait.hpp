@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2023, SAP SE. All rights reserved.
+ * DO NOT ALTER OR REMOVE COPYRIGHT NOTICES OR THIS FILE HEADER.
+ *
+ * This code is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU General Public License version 2 only, as
+ * published by the Free Software Foundation.
+ *
+ * This code is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE.  See the GNU General Public License
+ * version 2 for more details (a copy is included in the LICENSE file that
+ * accompanied this code).
+ *
+ * You should have received a copy of the GNU General Public License version
+ * 2 along with this work; if not, write to the Free Software Foundation,
+ * Inc., 51 Franklin St, Fifth Floor, Boston, MA 02110-1301 USA.
+ */
+
+#pragma once
+
+#include <algorithm>
+#include <atomic>
+#include <sched.h>
+#include <stdint.h>
+#include <time.h>
+
+#if defined(__linux__)
+#include <linux/futex.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+#endif
+
+// waiting primitives that spin briefly and then block,
+// all waits and wake-ups are async-signal-safe, so they can be used in signal handlers
+
+/** how long waits spin before they block, see Tracer.setWaitStrategy */
+struct WaitStrategy {
+  /** busy spins (with a cpu pause) before yielding */
+  std::atomic<int> spinIterations = {100};
+  /** sched_yield calls before blocking */
+  std::atomic<int> yieldIterations = {10};
+};
+
+static WaitStrategy waitStrategy;
+
+long nanotime() {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+inline void cpuRelax() {
+#if defined(__x86_64__) || defined(__i386__)
+  __builtin_ia32_pause();
+#elif defined(__aarch64__) || defined(__arm__)
+  asm volatile("yield");
+#endif
+}
+
+/** how long a single park sleeps on platforms without futexes, waits re-check their condition afterwards */
+const long POLL_PARK_NS = 50000;
+
+/**
+ * blocks while the word has the passed value, till it is woken up or the timeout (-1 for none) is reached,
+ * might return spuriously
+ */
+void park(std::atomic<int32_t> &word, int32_t value, long timeout_ns = -1) {
+#if defined(__linux__)
+  struct timespec ts = {timeout_ns / 1000000000, timeout_ns % 1000000000};
+  syscall(SYS_futex, reinterpret_cast<int32_t*>(&word), FUTEX_WAIT_PRIVATE, value, timeout_ns < 0 ? nullptr : &ts,
+    nullptr, 0);
+#else
+  // no futex available, so we poll
+  if (word.load() == value) {
+    struct timespec ts = {0, timeout_ns < 0 ? POLL_PARK_NS : std::min(timeout_ns, POLL_PARK_NS)};
+    nanosleep(&ts, nullptr);
+  }
+#endif
+}
+
+/** wakes all threads parked on the word */
+void unparkAll(std::atomic<int32_t> &word) {
+#if defined(__linux__)
+  syscall(SYS_futex, reinterpret_cast<int32_t*>(&word), FUTEX_WAKE_PRIVATE, INT32_MAX, nullptr, nullptr, 0);
+#endif
+}
+
+/**
+ * Backoff for a single wait: spin, then yield, then block
+ */
+class Backoff {
+  int iteration = 0;
+public:
+  /** returns true if the caller should block now, spins or yields otherwise */
+  bool shouldPark() {
+    int spins = waitStrategy.spinIterations.load(std::memory_order_relaxed);
+    int yields = waitStrategy.yieldIterations.load(std::memory_order_relaxed);
+    if (iteration < spins) {
+      iteration++;
+      cpuRelax();
+      return false;
+    }
+    if (iteration < spins + yields) {
+      iteration++;
+      sched_yield();
+      return false;
+    }
+    return true;
+  }
+};
+
+/**
+ * 32 bit value (integer or enum) that threads can wait on,
+ * wake-ups only cost a system call if a thread is blocked
+ */
+template <typename T> class WaitableAtomic {
+  static_assert(sizeof(T) <= sizeof(int32_t), "value has to fit into a futex word");
+
+  std::atomic<int32_t> value;
+  std::atomic<int32_t> parked = {0};
+
+  void wakeIfParked() {
+    if (parked.load() > 0) {
+      unparkAll(value);
+    }
+  }
+
+public:
+  WaitableAtomic(T initial = T()) : value((int32_t)initial) {}
+
+  T load(std::memory_order order = std::memory_order_seq_cst) const {
+    return (T)value.load(order);
+  }
+
+  operator T() const { return load(); }
+
+  void store(T newValue) {
+    value.store((int32_t)newValue);
+    wakeIfParked();
+  }
+
+  WaitableAtomic& operator=(T newValue) {
+    store(newValue);
+    return *this;
+  }
+
+  bool compare_exchange_strong(T &expected, T desired) {
+    int32_t exp = (int32_t)expected;
+    bool success = value.compare_exchange_strong(exp, (int32_t)desired);
+    expected = (T)exp;
+    if (success) {
+      wakeIfParked();
+    }
+    return success;
+  }
+
+  /** only for integral values */
+  T increment() {
+    T old = (T)value.fetch_add(1);
+    wakeIfParked();
+    return old;
+  }
+
+  /** only for integral values */
+  T decrement() {
+    T old = (T)value.fetch_sub(1);
+    wakeIfParked();
+    return old;
+  }
+
+  /** waits till the predicate holds for the current value, returns false on timeout */
+  template <typename P> bool waitUntil(P predicate, long timeout_ns = -1) {
+    long start = timeout_ns == -1 ? 0 : nanotime();
+    Backoff backoff;
+    while (true) {
+      int32_t current = value.load();
+      if (predicate((T)current)) {
+        return true;
+      }
+      if (timeout_ns != -1 && nanotime() - start > timeout_ns) {
+        return false;
+      }
+      if (backoff.shouldPark()) {
+        parked.fetch_add(1);
+        // re-check after announcing ourselves, the writer either sees us or we see its value
+        if (value.load() == current) {
+          park(value, current, timeout_ns == -1 ? -1 : std::max(0L, timeout_ns - (nanotime() - start)));
+        }
+        parked.fetch_sub(1);
+        // spin again after each wake-up, the value usually changes shortly after
+        backoff = Backoff();
+      }
+    }
+  }
+
+  /** waits till the value is different from the passed one */
+  bool waitWhileEquals(T old, long timeout_ns = -1) {
+    return waitUntil([&](T current) { return current != old; }, timeout_ns);
+  }
+};
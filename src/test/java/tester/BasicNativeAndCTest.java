@@ -10,6 +10,7 @@ import tester.util.NativeUtil;
 
 import java.util.List;
 
+import static org.testng.AssertJUnit.assertEquals;
 import static org.testng.AssertJUnit.assertFalse;
 import static org.testng.AssertJUnit.assertTrue;
 
@@ -47,6 +48,20 @@ public class BasicNativeAndCTest {
         }
     }
 
+    @Test
+    public void testSymbolizeCFrames() {
+        Configuration config = Tracer.extensiveConfigs.stream().filter(Configuration::doesIncludeCFrames)
+                .findFirst().orElseThrow();
+        var trace = new Tracer().run(config);
+        trace.symbolizeNonJavaFrames();
+        var symbols = trace.stream().filter(frame -> frame instanceof NonJavaFrame)
+                .map(frame -> ((NonJavaFrame) frame).getSymbol()).filter(s -> s != null && s.name() != null).toList();
+        assertFalse("%s should have C++ frames with symbols".formatted(config.toLongString()), symbols.isEmpty());
+        assertTrue(trace.toString().contains(symbols.get(0).name()));
+        // frames that are not symbolized explicitly only print their pc
+        assertEquals("Cpp[0x00001234]", new NonJavaFrame(0x1234).toString());
+    }
+
     @Test
     public void testRunNonC() {
         matchers = new Matcher[]{Frame.hasMethod(0, "method7", "()V"),
@@ -0,0 +1,27 @@
+package tester;
+
+import org.testng.annotations.Test;
+import tester.Frame.JavaFrame;
+import tester.Frame.MethodId;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class ColumnarFramesTest {
+
+    @Test
+    public void testUnresolvedMethodsGetPlaceholders() {
+        MethodId resolved = new MethodId(1, "Ltester/A;", "run", "()V");
+        ColumnarFrames frames = new ColumnarFrames(new int[]{0, 1, -1}, new MethodId[]{resolved, null},
+                new int[]{1, 2, 3}, new byte[]{Frame.ASGCT, Frame.ASGCT, Frame.ASGCT}, new byte[]{-2, -2, -2},
+                new long[]{0, 0, 0});
+        assertEquals(resolved, ((JavaFrame) frames.get(0)).methodId);
+        for (int i = 1; i < frames.size(); i++) {
+            JavaFrame frame = (JavaFrame) frames.get(i);
+            assertTrue(frame.methodId.toString().contains("<unresolved>"));
+            // no NullPointerException when comparing or printing
+            assertTrue(!frame.equals(frames.get(0)));
+            assertTrue(!frame.toString().isEmpty());
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package tester;
+
+import org.testng.annotations.Test;
+
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
+public class OverheadControllerTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    /**
+     * feed the controller periods of one second process CPU time with the passed sampling CPU time
+     */
+    private static void run(OverheadController controller, long[] time, double overhead, int periods) {
+        for (int i = 0; i < periods; i++) {
+            time[0] += (long) (overhead * SECOND);
+            time[1] += SECOND;
+            controller.update(time[0], time[1]);
+        }
+    }
+
+    @Test
+    public void testReducesThreadsFirst() {
+        OverheadController controller = new OverheadController(0.02, 0.001f, 10);
+        long[] time = {0, 0};
+        controller.update(0, 0);
+        run(controller, time, 0.04, 1);
+        assertEquals(5, controller.getThreadsPerIteration());
+        assertEquals(0.001f, controller.getSampleInterval());
+    }
+
+    @Test
+    public void testIncreasesIntervalWithSingleThread() {
+        OverheadController controller = new OverheadController(0.02, 0.001f, 1);
+        long[] time = {0, 0};
+        controller.update(0, 0);
+        run(controller, time, 0.2, 3);
+        assertTrue(controller.getSampleInterval() > 0.01f);
+        assertEquals(1, controller.getThreadsPerIteration());
+    }
+
+    @Test
+    public void testRecoversWhenBelowBudget() {
+        OverheadController controller = new OverheadController(0.02, 0.001f, 10);
+        long[] time = {0, 0};
+        controller.update(0, 0);
+        run(controller, time, 0.5, 5);
+        assertEquals(1, controller.getThreadsPerIteration());
+        assertTrue(controller.getSampleInterval() > 0.001f);
+        run(controller, time, 0, 100);
+        assertEquals(0.001f, controller.getSampleInterval());
+        assertEquals(10, controller.getThreadsPerIteration());
+    }
+
+    @Test
+    public void testIgnoresShortPeriods() {
+        OverheadController controller = new OverheadController(0.02, 0.001f, 10);
+        controller.update(0, 0);
+        controller.update(1_000_000, 1_000_000);
+        assertEquals(10, controller.getThreadsPerIteration());
+        assertEquals(0.0, controller.getOverhead());
+    }
+}
@@ -3,8 +3,18 @@ package tester;
 import org.testng.annotations.Test;
 import tester.Frame.Matcher;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Function;
 
+import static org.testng.AssertJUnit.assertEquals;
+import static org.testng.AssertJUnit.assertTrue;
+
 /**
  * profiling a thread different from the current
  */
@@ -26,18 +36,36 @@ public class SpecificThreadTest {
 
     Matcher[] matchers = new Matcher[]{Frame.hasMethod(0, "run", "()V")};
 
-    private void withDoSomethingThread(Function<Thread, Trace> callable) throws Exception {
-        DoSomethingThread t = new DoSomethingThread();
-        t.setName("DoSomethingThread");
-        t.start();
-        while (!t.started) ; // wait till the thread is in the run method
+    interface ThreadsBody {
+        void run(List<DoSomethingThread> threads) throws Exception;
+    }
+
+    /**
+     * start the threads, wait till they are in their run method, run the body and stop the threads afterwards
+     */
+    private void withDoSomethingThreads(int count, ThreadsBody body) throws Exception {
+        List<DoSomethingThread> threads = new ArrayList<>();
         try {
-            callable.apply(t).assertTrue(matchers);
+            for (int i = 0; i < count; i++) {
+                DoSomethingThread t = new DoSomethingThread();
+                t.setName("DoSomethingThread");
+                t.start();
+                threads.add(t);
+                while (!t.started) ; // wait till the thread is in the run method
+            }
+            body.run(threads);
         } finally {
-            t.stop = true;
+            threads.forEach(t -> t.stop = true);
+            for (DoSomethingThread t : threads) {
+                t.join();
+            }
         }
     }
 
+    private void withDoSomethingThread(Function<Thread, Trace> callable) throws Exception {
+        withDoSomethingThreads(1, threads -> callable.apply(threads.get(0)).assertTrue(matchers));
+    }
+
     @Test
     public void gstTest() throws Exception {
         withDoSomethingThread(t -> new Tracer().runGST(t));
@@ -75,4 +103,361 @@ public class SpecificThreadTest {
             return new Tracer().runASGSTInSeparateThread(t);
         });
     }
+
+    /**
+     * all native waits block immediately without spinning
+     */
+    @Test(timeOut = 10000)
+    public void testWithoutSpinning() throws Exception {
+        Tracer.WaitStrategy previous = Tracer.getWaitStrategy();
+        Tracer.setWaitStrategy(0, 0);
+        try {
+            withDoSomethingThread(t -> {
+                new Tracer().runASGSTInSignalHandler(t).assertTrue(matchers);
+                new Tracer().runASGCTInSignalHandler(t).assertTrue(matchers);
+                return new Tracer().runASGSTInSeparateThread(t);
+            });
+        } finally {
+            Tracer.setWaitStrategy(previous);
+        }
+    }
+
+    /**
+     * multiple threads walk multiple other threads at the same time
+     */
+    @Test(timeOut = 10000)
+    public void testConcurrentWalks() throws Exception {
+        ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        withDoSomethingThreads(2, targets -> {
+            List<Thread> samplers = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                Thread target = targets.get(i % targets.size());
+                Thread sampler = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 100; j++) {
+                            new Tracer().runASGSTInSignalHandler(target).assertTrue(matchers);
+                            new Tracer().runASGSTInSeparateThread(target).assertTrue(matchers);
+                            new Tracer().runASGCTInSignalHandler(target).assertTrue(matchers);
+                        }
+                    } catch (Throwable e) {
+                        errors.add(e);
+                    }
+                });
+                sampler.start();
+                samplers.add(sampler);
+            }
+            for (Thread sampler : samplers) {
+                sampler.join();
+            }
+        });
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.peek());
+        }
+    }
+
+    @Test(timeOut = 20000)
+    public void testConcurrentWalksWithDifferentWalkerCounts() throws Exception {
+        int oldCount = Tracer.getWalkerThreadCount();
+        try {
+            for (int count : new int[]{1, 8}) {
+                Tracer.setWalkerThreadCount(count);
+                assertEquals(count, Tracer.getWalkerThreadCount());
+                testConcurrentWalks();
+            }
+        } finally {
+            Tracer.setWalkerThreadCount(oldCount);
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testRunMultipleForMultipleThreads() throws Exception {
+        withDoSomethingThreads(3, targets -> {
+            Tracer tracer = new Tracer(Tracer.extensiveSpecificThreadConfigs);
+            var traces = tracer.runMultiple(targets.toArray(Thread[]::new));
+            assertEquals(targets.size(), traces.length);
+            for (var threadTraces : traces) {
+                tracer.compare(List.of(threadTraces)).withoutNonJavaFrames().assertTrue(matchers);
+            }
+        });
+    }
+
+    @Test(timeOut = 10000)
+    public void testGSTForMultipleThreads() throws Exception {
+        withDoSomethingThreads(3, targets -> {
+            Trace[] gstTraces = Tracer.runGSTForThreads(targets.toArray(Thread[]::new), 1024);
+            assertEquals(targets.size(), gstTraces.length);
+            for (Trace trace : gstTraces) {
+                trace.assertTrue(matchers);
+            }
+        });
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRunMultipleRejectsGST() {
+        // GST would walk the threads after they resumed, so its traces can't be compared with the other traces
+        Tracer.runMultiple(new Thread[]{Thread.currentThread()}, List.of(Tracer.Configuration.gst(),
+                Tracer.Configuration.asgctSignalHandler()), 1024);
+    }
+
+    @Test(timeOut = 10000)
+    public void testSampleTime() throws Exception {
+        withDoSomethingThreads(1, targets -> {
+            Thread target = targets.get(0);
+            Tracer tracer = new Tracer(Tracer.extensiveSpecificThreadConfigs);
+            long before = System.nanoTime();
+            var traces = tracer.runMultiple(new Thread[]{target})[0];
+            long after = System.nanoTime();
+            Tracer.SampleTime time = traces[0].time();
+            assertTrue(time != null);
+            for (var trace : traces) {
+                assertEquals(time, trace.time());
+            }
+            assertTrue(time.timestampNanos() >= before && time.timestampNanos() <= after);
+            assertTrue(time.signalDelayNanos() >= 0 && time.signalDelayNanos() <= after - before);
+            assertTrue(time.threadCpuTimeNanos() > 0);
+            // the thread is spinning, so its CPU time increases
+            Thread.sleep(10);
+            var later = tracer.runMultiple(new Thread[]{target})[0][0].time();
+            assertTrue(later.threadCpuTimeNanos() > time.threadCpuTimeNanos());
+        });
+    }
+
+    @Test(timeOut = 10000)
+    public void testContinuousSampling() throws Exception {
+        withDoSomethingThreads(1, targets -> {
+            Thread target = targets.get(0);
+            Tracer tracer = new Tracer(Tracer.Configuration.asgctSignalHandler(),
+                    Tracer.Configuration.asgstSignalHandler());
+            try {
+                tracer.startContinuousSampling(1_000_000, 1000);
+                Thread.sleep(100);
+            } finally {
+                Tracer.stopContinuousSampling();
+            }
+            var samples = Tracer.drainContinuousSamples(100000).stream()
+                    .filter(s -> s.threadId() == target.getId()).toList();
+            assertTrue(samples.size() > 0);
+            for (var sample : samples) {
+                tracer.compare(sample.traces()).withoutNonJavaFrames().assertTrue(matchers);
+            }
+        });
+    }
+
+    @Test(timeOut = 10000)
+    public void testWalksDuringContinuousSampling() throws Exception {
+        withDoSomethingThreads(1, targets -> {
+            Thread target = targets.get(0);
+            Tracer tracer = new Tracer(Tracer.Configuration.asgstSignalHandler());
+            var droppedBefore = Tracer.getDroppedSamples();
+            try {
+                tracer.startContinuousSampling(100_000, 1000);
+                for (int i = 0; i < 100; i++) {
+                    tracer.runASGSTInSignalHandler(target).withoutNonJavaFrames().assertTrue(matchers);
+                }
+            } finally {
+                Tracer.stopContinuousSampling();
+            }
+            var dropped = Tracer.getDroppedSamples();
+            assertEquals(droppedBefore.signalFailed(), dropped.signalFailed());
+            assertEquals(droppedBefore.timedOut(), dropped.timedOut());
+            assertTrue(Tracer.drainContinuousSamples(100_000).stream()
+                    .anyMatch(s -> s.threadId() == target.getId()));
+        });
+    }
+
+    static class DoSomethingTask implements Runnable {
+        volatile boolean stop = false;
+        volatile boolean started = false;
+
+        public void run() {
+            started = true;
+            while (!stop) ;
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testVirtualThreads() throws Exception {
+        if (!Tracer.setVirtualThreadSupport(true)) {
+            return; // JDK without virtual threads
+        }
+        DoSomethingTask task = new DoSomethingTask();
+        // Thread.startVirtualThread is not part of the JDK 17 API
+        Thread target = (Thread) Thread.class.getMethod("startVirtualThread", Runnable.class).invoke(null, task);
+        try {
+            while (!task.started) ; // wait till the thread is in the run method
+            assertTrue(Tracer.isVirtual(target));
+            while (!List.of(Tracer.getMountedVirtualThreads()).contains(target)) {
+                Thread.onSpinWait();
+            }
+            assertTrue(!List.of(Tracer.getThreads()).contains(target));
+            // walks the carrier, which runs the stack of the virtual thread
+            new Tracer().runASGCTInSignalHandler(target).assertTrue(matchers);
+            Tracer tracer = new Tracer(Tracer.Configuration.asgctSignalHandler());
+            try {
+                tracer.startContinuousSampling(1_000_000, 1000);
+                Thread.sleep(100);
+            } finally {
+                Tracer.stopContinuousSampling();
+            }
+            var samples = Tracer.drainContinuousSamples(100000).stream()
+                    .filter(s -> s.threadId() == target.getId()).toList();
+            assertTrue(samples.size() > 0);
+            for (var sample : samples) {
+                assertTrue(sample.isOfVirtualThread());
+                tracer.compare(sample.traces()).withoutNonJavaFrames().assertTrue(matchers);
+            }
+        } finally {
+            task.stop = true;
+            target.join();
+            Tracer.setVirtualThreadSupport(false);
+        }
+        assertTrue(!List.of(Tracer.getMountedVirtualThreads()).contains(target));
+    }
+
+    @Test
+    public void testThreadRegistry() throws Exception {
+        List<Thread> ended = new ArrayList<>();
+        withDoSomethingThreads(1, targets -> {
+            Thread target = targets.get(0);
+            ended.add(target);
+            assertTrue(List.of(Tracer.getThreads()).contains(target));
+            assertTrue(List.of(Tracer.selectThreads(Integer.MAX_VALUE, 0)).contains(target));
+            assertTrue(!List.of(Tracer.selectThreads(Integer.MAX_VALUE, target.getId())).contains(target));
+            assertEquals(1, Tracer.selectThreads(1, 0).length);
+            // the walker threads are never walked themselves
+            assertTrue(Tracer.getWalkerThreadCount() > 0);
+            for (Thread[] threads : List.of(Tracer.getThreads(), Tracer.selectThreads(Integer.MAX_VALUE, 0),
+                    Tracer.selectOnCpuThreads(Integer.MAX_VALUE, 0))) {
+                assertTrue(Arrays.stream(threads).noneMatch(t -> t.getName().equals("Tracer Walker")));
+            }
+        });
+        // the threads are joined afterwards
+        assertTrue(!List.of(Tracer.getThreads()).contains(ended.get(0)));
+    }
+
+    /**
+     * start and end enough threads to resize the native thread id maps several times and to reuse the slots
+     * of ended threads, while other threads stay alive
+     */
+    @Test(timeOut = 60000)
+    public void testThreadChurn() throws Exception {
+        withDoSomethingThreads(2, targets -> {
+            Set<Long> endedIds = new HashSet<>();
+            for (int round = 0; round < 20; round++) {
+                List<Thread> threads = new ArrayList<>();
+                for (int i = 0; i < 50; i++) {
+                    Thread thread = new Thread(() -> {
+                    });
+                    thread.start();
+                    threads.add(thread);
+                }
+                for (Thread thread : threads) {
+                    thread.join();
+                    endedIds.add(thread.getId());
+                }
+            }
+            List<Thread> registered = List.of(Tracer.getThreads());
+            assertTrue(registered.containsAll(targets));
+            assertTrue(registered.stream().noneMatch(t -> endedIds.contains(t.getId())));
+            // the signal handlers look up the Java thread ids of the sampled threads in the maps
+            Tracer tracer = new Tracer(Tracer.Configuration.asgctSignalHandler());
+            try {
+                tracer.startContinuousSampling(1_000_000, 1000);
+                Thread.sleep(100);
+            } finally {
+                Tracer.stopContinuousSampling();
+            }
+            var samples = Tracer.drainContinuousSamples(100000);
+            assertTrue(samples.stream().noneMatch(s -> endedIds.contains(s.threadId())));
+            for (Thread target : targets) {
+                var targetSamples = samples.stream().filter(s -> s.threadId() == target.getId()).toList();
+                assertTrue(targetSamples.size() > 0);
+                for (var sample : targetSamples) {
+                    tracer.compare(sample.traces()).withoutNonJavaFrames().assertTrue(matchers);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testOnCpuThreadSelection() throws Exception {
+        if (!Tracer.isCpuTimerSupported()) {
+            return;
+        }
+        Thread sleeping = new Thread(() -> {
+            try {
+                Thread.sleep(10_000);
+            } catch (InterruptedException e) {
+            }
+        });
+        sleeping.start();
+        try {
+            withDoSomethingThreads(1, targets -> {
+                Tracer.selectOnCpuThreads(0, 0); // reset the CPU times
+                Thread.sleep(50);
+                List<Thread> selected = List.of(Tracer.selectOnCpuThreads(Integer.MAX_VALUE, 0));
+                assertTrue(selected.contains(targets.get(0)));
+                assertTrue(!selected.contains(sleeping));
+            });
+        } finally {
+            sleeping.interrupt();
+        }
+    }
+
+    @Test
+    public void testContinuousSamplingIntoBuffer() throws Exception {
+        Tracer tracer = new Tracer(Tracer.Configuration.asgctSignalHandler(),
+                Tracer.Configuration.asgstSignalHandler());
+        Tracer.attachBuffer(ByteBuffer.allocateDirect(1 << 20));
+        try {
+            withDoSomethingThreads(1, targets -> {
+                try {
+                    tracer.startContinuousSampling(1_000_000, 1000);
+                    Thread.sleep(100);
+                } finally {
+                    Tracer.stopContinuousSampling();
+                }
+                int found = 0;
+                SampleBuffer buffer;
+                while (!(buffer = Tracer.drainContinuousSamplesToBuffer(100000)).isEmpty()) {
+                    for (SampleBuffer.Sample sample : buffer) {
+                        if (sample.threadId() == targets.get(0).getId()) {
+                            tracer.compare(sample.traces()).withoutNonJavaFrames().assertTrue(matchers);
+                            found++;
+                        }
+                    }
+                }
+                assertTrue(found > 0);
+            });
+        } finally {
+            Tracer.detachBuffer();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testContinuousSamplingRejectsTooSmallBuffer() {
+        Tracer tracer = new Tracer(Tracer.Configuration.asgctSignalHandler(),
+                Tracer.Configuration.asgstSignalHandler()).setDepth(100);
+        Tracer.detachBuffer();
+        tracer.startContinuousSampling(1_000_000, 1000);
+        try {
+            Tracer.attachBuffer(ByteBuffer.allocateDirect(SampleBuffer.SAMPLE_HEADER_SIZE));
+        } finally {
+            Tracer.stopContinuousSampling();
+            Tracer.detachBuffer();
+        }
+    }
+
+    @Test(timeOut = 10000)
+    public void testRunMultipleAndCompareNatively() throws Exception {
+        withDoSomethingThreads(2, targets -> {
+            Tracer tracer = new Tracer(Tracer.extensiveSpecificThreadConfigs);
+            int[] statuses = new int[targets.size()];
+            var unequal = tracer.runMultipleAndCompareNatively(targets.toArray(Thread[]::new), true, statuses);
+            for (int i = 0; i < targets.size(); i++) {
+                assertEquals(Tracer.NATIVE_COMPARISON_EQUAL, statuses[i]);
+            }
+            assertEquals(null, unequal);
+        });
+    }
 }
@@ -206,4 +206,78 @@ public class TracerTest {
             testRunASGSTInSeparateThread();
         }
     }
+
+    private Trace deepRecursion(int remaining, Tracer tracer) {
+        if (remaining == 0) {
+            return tracer.runMultipleAndCompare();
+        }
+        return deepRecursion(remaining - 1, tracer);
+    }
+
+    /**
+     * traces deeper than 1024 frames should not be cut off
+     */
+    @Test
+    public void testDeepTrace() {
+        Trace trace = deepRecursion(2000, new Tracer(Tracer.extensiveConfigs).setDepth(4096));
+        assertTrue(trace.size() > 2000);
+        trace.assertTrue(Frame.hasMethod(0, "deepRecursion"), Frame.hasMethod(2000, "deepRecursion"));
+    }
+
+    @Test
+    public void testKnownTraceHandles() throws InterruptedException {
+        Tracer.setKnownTraceHandles(true);
+        try {
+            Trace[] traces = new Trace[2];
+            for (int i = 0; i < traces.length; i++) {
+                traces[i] = new Tracer().runASGST();
+            }
+            assertEquals(traces[0].getHash(), traces[1].getHash());
+            assertTrue(!traces[0].isKnownTraceHandle() && traces[1].isKnownTraceHandle());
+            assertEquals(traces[0], traces[1].resolve());
+            // other threads are not affected
+            Trace[] otherTrace = new Trace[1];
+            Thread other = new Thread(() -> otherTrace[0] = new Tracer().runASGST());
+            other.start();
+            other.join();
+            assertTrue(!otherTrace[0].isKnownTraceHandle());
+        } finally {
+            Tracer.setKnownTraceHandles(false);
+            Tracer.clearKnownTraces();
+        }
+    }
+
+    @Test
+    public void testMethodIdsAreCached() {
+        var first = (Frame.JavaFrame) new Tracer().runASGST().get(0);
+        var second = (Frame.JavaFrame) new Tracer().runASGST().get(0);
+        assertTrue(first.methodId == second.methodId);
+    }
+
+    @Test
+    public void testColumnarTraceEqualsMaterializedTrace() {
+        Trace trace = new Tracer().runASGST();
+        Trace materialized = new Trace(trace.kind, trace.state, trace.stream().toList());
+        assertEquals(materialized, trace);
+        assertEquals(trace.hasNonJavaFrames(), materialized.hasNonJavaFrames());
+    }
+
+    @Test
+    public void testSamplerStats() {
+        Tracer.resetSamplerStats();
+        Tracer.setSamplerStatsEnabled(true);
+        try {
+            new Tracer().runASGSTInSignalHandler();
+        } finally {
+            Tracer.setSamplerStatsEnabled(false);
+        }
+        SamplerStats stats = Tracer.getSamplerStats();
+        Tracer.resetSamplerStats();
+        for (SamplerStats.Phase phase : new SamplerStats.Phase[]{SamplerStats.Phase.SIGNAL_DELIVERY,
+                SamplerStats.Phase.SIGNAL_HANDLER_WALK, SamplerStats.Phase.REQUESTER_WAIT,
+                SamplerStats.Phase.MATERIALIZATION}) {
+            assertTrue(stats.get(phase).count() >= 1);
+            assertTrue(stats.get(phase).p50Nanos() <= stats.get(phase).maxNanos());
+        }
+    }
 }
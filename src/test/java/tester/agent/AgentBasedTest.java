@@ -69,6 +69,23 @@ public class AgentBasedTest {
         testMathParser(minimalConfig, 1024);
     }
 
+    @Test
+    public void testMathParserWithCpuTimer() {
+        var result = AgentBase.run(minimalConfig, 0.0001f, 1024, () -> MathParser.run(1001, 2000000, 500),
+                t -> true, null, List.of(), Tracer.SamplingTrigger.CPU_TIMER);
+        assertTrue(result.success() > 0 && result.fail() == 0);
+    }
+
+    @Test
+    public void testMathParserWithPerfEvents() {
+        if (!Tracer.isPerfEventSupported()) {
+            return;
+        }
+        var result = AgentBase.run(minimalConfig, 0.0001f, 1024, () -> MathParser.run(1001, 2000000, 500),
+                t -> true, null, List.of(), Tracer.SamplingTrigger.PERF_CPU_CLOCK);
+        assertTrue(result.success() > 0 && result.fail() == 0);
+    }
+
     @Test
     public void testMathParserWithDepthTenLessConfigsReversed() {
         testMathParser(minimalConfig, 10);